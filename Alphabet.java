@@ -1,5 +1,9 @@
 package enigma;
 
+import java.util.Arrays;
+
+import static enigma.EnigmaException.*;
+
 /** An alphabet of encodable characters.  Provides a mapping from characters
  *  to and from indices into the alphabet.
  *  @author Joseph Heupler
@@ -9,8 +13,37 @@ class Alphabet {
     /** A new alphabet containing CHARS. The K-th character has index
      *  K (numbering from 0). No character may be duplicated. */
     Alphabet(String chars) {
-        // FIXME
         _chars = chars;
+        char lo = Character.MAX_VALUE, hi = Character.MIN_VALUE;
+        for (int i = 0; i < chars.length(); i += 1) {
+            lo = (char) Math.min(lo, chars.charAt(i));
+            hi = (char) Math.max(hi, chars.charAt(i));
+        }
+        int span = chars.isEmpty() ? 0 : hi - lo + 1;
+        if (span <= DENSE_SLACK * chars.length() + DENSE_MIN) {
+            _base = lo;
+            _dense = new int[span];
+            Arrays.fill(_dense, -1);
+            _keys = null;
+            _values = null;
+            _mask = 0;
+            _shift = 0;
+        } else {
+            _base = 0;
+            _dense = null;
+            int capacity = Integer.highestOneBit(chars.length() * 2 + 1) * 2;
+            _keys = new char[capacity];
+            _values = new int[capacity];
+            Arrays.fill(_values, -1);
+            _mask = capacity - 1;
+            _shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        }
+        boolean bytes = chars.length() == BYTE_VALUES;
+        for (int i = 0; i < chars.length(); i += 1) {
+            put(chars.charAt(i), i);
+            bytes &= chars.charAt(i) == i;
+        }
+        _bytes = bytes;
     }
 
     /** A default alphabet of all upper-case characters. */
@@ -18,28 +51,95 @@ class Alphabet {
         this("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
     }
 
+    /** Return the alphabet of the 256 byte values, in which the character
+     *  with index K is (char) K.  Its cycles, notches and settings are
+     *  written as pairs of hexadecimal digits, one pair per byte. */
+    static Alphabet ofBytes() {
+        char[] chars = new char[BYTE_VALUES];
+        for (int k = 0; k < BYTE_VALUES; k += 1) {
+            chars[k] = (char) k;
+        }
+        return new Alphabet(new String(chars));
+    }
+
+    /** Return true iff I am the alphabet of byte values (see ofBytes()). */
+    boolean isBytes() {
+        return _bytes;
+    }
+
+    /** Return the characters whose indices in the alphabet of byte
+     *  values are written in HEX, two hexadecimal digits per byte. */
+    static String fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw error("odd number of hex digits in %s", hex);
+        }
+        char[] result = new char[hex.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            int hi = Character.digit(hex.charAt(2 * i), 16),
+                lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi == -1 || lo == -1) {
+                throw error("bad hex digits in %s", hex);
+            }
+            result[i] = (char) (hi * 16 + lo);
+        }
+        return new String(result);
+    }
+
+    /** Record that CH has index K, rejecting duplicates. */
+    private void put(char ch, int k) {
+        if (_dense != null) {
+            if (_dense[ch - _base] != -1) {
+                throw error("duplicate character '%c' in alphabet", ch);
+            }
+            _dense[ch - _base] = k;
+            return;
+        }
+        int slot = hash(ch);
+        while (_values[slot] != -1) {
+            if (_keys[slot] == ch) {
+                throw error("duplicate character '%c' in alphabet", ch);
+            }
+            slot = (slot + 1) & _mask;
+        }
+        _keys[slot] = ch;
+        _values[slot] = k;
+    }
+
+    /** Return the home slot of CH in the sparse table. */
+    private int hash(char ch) {
+        return ch * 0x9E3779B9 >>> _shift;
+    }
+
+    /** Return the index of CH, or -1 if CH is not in this alphabet. */
+    int indexOf(char ch) {
+        if (_dense != null) {
+            int k = ch - _base;
+            return k >= 0 && k < _dense.length ? _dense[k] : -1;
+        }
+        for (int slot = hash(ch); _values[slot] != -1;
+             slot = (slot + 1) & _mask) {
+            if (_keys[slot] == ch) {
+                return _values[slot];
+            }
+        }
+        return -1;
+    }
+
     /** Returns the size of the alphabet. */
     int size() {
-        // FIXME
         return _chars.length();
     }
 
     /** Returns true if CH is in this alphabet. */
     boolean contains(char ch) {
-        // FIXME
-        if (_chars.indexOf(ch) != -1) {
-            return true;
-        } else {
-            return false;
-        }
+        return indexOf(ch) != -1;
     }
 
     /** Returns character number INDEX in the alphabet, where
      *  0 <= INDEX < size(). */
     char toChar(int index) {
-        // FIXME
-        if (index >= this.size() && index < 0) {
-            throw new EnigmaException("Index is out of bounds in alphabet"); // check to see if specific exception needed
+        if (index >= size() || index < 0) {
+            throw new EnigmaException("Index is out of bounds in alphabet");
         }
         return _chars.charAt(index);
     }
@@ -47,13 +147,48 @@ class Alphabet {
     /** Returns the index of character CH which must be in
      *  the alphabet. This is the inverse of toChar(). */
     int toInt(char ch) {
-        // FIXME
-        for (int i = 0; i < this.size(); i++) {
-            if (_chars.charAt(i) == ch) {
-                return i;
-            }
+        int k = indexOf(ch);
+        if (k == -1) {
+            throw new EnigmaException("Character was not found in the alphabet");
         }
-        throw new EnigmaException("Character was not found in the alphabet");
+        return k;
+    }
+
+    /** Return the characters of this alphabet, in index order. */
+    String chars() {
+        return _chars;
     }
-    public String _chars;
-}
\ No newline at end of file
+
+    /** Number of distinct byte values. */
+    private static final int BYTE_VALUES = 256;
+
+    /** A dense table is used when the characters span at most
+     *  DENSE_SLACK * size() + DENSE_MIN code points. */
+    private static final int DENSE_SLACK = 4, DENSE_MIN = 256;
+
+    /** My characters, in index order. */
+    private final String _chars;
+
+    /** True iff I am the alphabet of byte values. */
+    private final boolean _bytes;
+
+    /** Smallest character covered by _dense. */
+    private final char _base;
+
+    /** _dense[C - _base] is the index of C, or -1.  Null if I use the
+     *  sparse table instead. */
+    private final int[] _dense;
+
+    /** Open-addressed sparse table: _values[S] is the index of _keys[S],
+     *  or -1 for an empty slot.  Null if I use _dense. */
+    private final char[] _keys;
+
+    /** See _keys. */
+    private final int[] _values;
+
+    /** Capacity of the sparse table minus one. */
+    private final int _mask;
+
+    /** Shift that reduces a 32-bit hash to a slot of the sparse table. */
+    private final int _shift;
+}
@@ -0,0 +1,89 @@
+package enigma;
+
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+import static org.junit.Assert.*;
+
+import static enigma.TestUtils.*;
+
+/** The suite of all JUnit tests for the Alphabet class.
+ *  @author Joseph Heupler
+ */
+public class AlphabetTest {
+
+    /** Testing time limit. */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(5);
+
+    /* ***** TESTING UTILITIES ***** */
+
+    /** Check that ALPHA maps each character of CHARS to its position in
+     *  CHARS and back, and that it contains none of NOTIN. */
+    private void checkAlphabet(Alphabet alpha, String chars, String notIn) {
+        assertEquals(chars.length(), alpha.size());
+        for (int i = 0; i < chars.length(); i += 1) {
+            assertTrue(alpha.contains(chars.charAt(i)));
+            assertEquals(i, alpha.toInt(chars.charAt(i)));
+            assertEquals(chars.charAt(i), alpha.toChar(i));
+        }
+        for (int i = 0; i < notIn.length(); i += 1) {
+            assertFalse(alpha.contains(notIn.charAt(i)));
+        }
+    }
+
+    /* ***** TESTS ***** */
+
+    @Test
+    public void checkUpper() {
+        checkAlphabet(UPPER, UPPER_STRING, "az*() 0\u4E00");
+    }
+
+    @Test
+    public void checkScattered() {
+        String chars = "A\u4E00z\u00E9\uFFEF0\u3042";
+        checkAlphabet(new Alphabet(chars), chars, "BZ\u4E01\u3043 ");
+    }
+
+    @Test
+    public void checkLarge() {
+        StringBuilder chars = new StringBuilder();
+        for (char c = '\u4E00'; c < '\u9FFF'; c += 3) {
+            chars.append(c);
+        }
+        chars.append("ABC");
+        checkAlphabet(new Alphabet(chars.toString()), chars.toString(),
+                      "\u4E01\u4E02D");
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void checkDuplicate() {
+        new Alphabet("ABCA");
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void checkDuplicateSparse() {
+        new Alphabet("A\u4E00\uFFEFA");
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void checkNotInAlphabet() {
+        UPPER.toInt('a');
+    }
+
+    @Test
+    public void checkBytes() {
+        Alphabet bytes = Alphabet.ofBytes();
+        assertEquals(256, bytes.size());
+        assertTrue(bytes.isBytes());
+        assertEquals(0xA5, bytes.toInt('\u00A5'));
+        assertEquals(' ', bytes.toChar(0x20));
+        assertFalse(UPPER.isBytes());
+        assertEquals("\u0000\u007F\u00FF", Alphabet.fromHex("007fFF"));
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void checkBadHex() {
+        Alphabet.fromHex("0G");
+    }
+}
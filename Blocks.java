@@ -0,0 +1,180 @@
+package enigma;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Converts the blocks of an input in parallel.  A block is a settings
+ *  line and the message lines up to the next one; since a settings line
+ *  determines the whole configuration of the machine, blocks are
+ *  independent.  Each block is converted by a worker thread into a
+ *  buffer of messages, and the buffers are written out in input order.
+ *  If a block fails, the messages converted before the failure are
+ *  written and the failure is thrown, as it would have been had the
+ *  blocks been converted one after another.
+ *  @author Joseph Heupler
+ */
+final class Blocks {
+
+    /** The conversion of one block. */
+    interface Converter {
+        /** Convert LINES, of which the first is a settings line, sending
+         *  the messages to OUT. */
+        void convert(List<String> lines, Pipeline.Messages out)
+            throws IOException;
+    }
+
+    /** A converter of blocks using THREADS workers, each block converted
+     *  by CONVERTER, with the results written to OUTPUT. */
+    Blocks(int threads, Converter converter, Pipeline.Messages output) {
+        _workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "enigma-block");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _converter = converter;
+        _output = output;
+        _maxPending = PENDING_PER_THREAD * threads;
+    }
+
+    /** Begin a new block with settings line SETTINGS. */
+    void start(String settings) throws IOException {
+        submit();
+        _block = new ArrayList<>();
+        _block.add(settings);
+    }
+
+    /** Return true iff a block has been started. */
+    boolean active() {
+        return _block != null;
+    }
+
+    /** Add the message line LINE to the current block. */
+    void add(String line) {
+        _block.add(line);
+    }
+
+    /** Convert the remaining blocks and write them out. */
+    void finish() throws IOException {
+        submit();
+        while (!_pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /** Stop my workers, abandoning any blocks not yet written. */
+    void close() {
+        _workers.shutdownNow();
+    }
+
+    /** Hand the current block, if any, to a worker, first writing out
+     *  finished blocks if too many are waiting. */
+    private void submit() throws IOException {
+        if (_block == null) {
+            return;
+        }
+        List<String> block = _block;
+        _block = null;
+        _pending.add(_workers.submit(() -> {
+            Result result = new Result();
+            try {
+                _converter.convert(block, result);
+            } catch (IOException | RuntimeException excp) {
+                result.failure = excp;
+            }
+            return result;
+        }));
+        while (_pending.size() > _maxPending) {
+            writeNext();
+        }
+    }
+
+    /** Write out the oldest block, waiting for it if need be, and throw
+     *  its failure, if any. */
+    private void writeNext() throws IOException {
+        Result result;
+        try {
+            result = _pending.remove().get();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException excp) {
+            throw new IOException(excp.getCause());
+        }
+        for (int i = 0, start = 0; i < result.size; i += 1) {
+            _output.message(result.chars, start, result.ends[i] - start);
+            start = result.ends[i];
+        }
+        if (result.failure instanceof IOException) {
+            throw (IOException) result.failure;
+        } else if (result.failure != null) {
+            throw (RuntimeException) result.failure;
+        }
+    }
+
+    /** The messages of a block, stored one after another in CHARS (the
+     *  K-th ending at ENDS[K]), and its failure, if any. */
+    private static class Result implements Pipeline.Messages {
+
+        @Override
+        public void message(char[] msg, int off, int len) {
+            if (length + len > chars.length) {
+                char[] grown = new char[Math.max(2 * chars.length,
+                                                 length + len)];
+                System.arraycopy(chars, 0, grown, 0, length);
+                chars = grown;
+            }
+            if (size == ends.length) {
+                int[] grown = new int[2 * ends.length];
+                System.arraycopy(ends, 0, grown, 0, size);
+                ends = grown;
+            }
+            System.arraycopy(msg, off, chars, length, len);
+            length += len;
+            ends[size] = length;
+            size += 1;
+        }
+
+        /** See class comment; LENGTH characters of CHARS and SIZE
+         *  entries of ENDS are valid. */
+        private char[] chars = new char[INITIAL_CHARS];
+        /** See CHARS. */
+        private int length;
+        /** See CHARS. */
+        private int[] ends = new int[INITIAL_MESSAGES];
+        /** See CHARS. */
+        private int size;
+        /** Failure while converting the block, or null. */
+        private Exception failure;
+    }
+
+    /** Blocks waiting to be written, per worker, before the reader
+     *  waits. */
+    private static final int PENDING_PER_THREAD = 4;
+
+    /** Initial capacities of a Result. */
+    private static final int INITIAL_CHARS = 256, INITIAL_MESSAGES = 16;
+
+    /** The worker threads. */
+    private final ExecutorService _workers;
+
+    /** Converts each block. */
+    private final Converter _converter;
+
+    /** Destination of the results. */
+    private final Pipeline.Messages _output;
+
+    /** Most blocks waiting to be written. */
+    private final int _maxPending;
+
+    /** Blocks handed to workers, oldest first. */
+    private final ArrayDeque<Future<Result>> _pending = new ArrayDeque<>();
+
+    /** The block being read, or null before the first settings line. */
+    private List<String> _block;
+}
@@ -0,0 +1,232 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static enigma.EnigmaException.*;
+
+/** A compiled machine configuration: the alphabet, the numbers of slots
+ *  and pawls, and each rotor's kind, name, notches and permutation, the
+ *  last as a table, so that loading an image needs no parsing of
+ *  cycles.  The text configuration remains the source; an image is made
+ *  from one by "java enigma.Main --compile=IMAGE CONFIG" and may then be
+ *  given wherever a configuration file is expected.
+ *
+ *  An image is the magic number, a version, the length and CRC-32C
+ *  checksum of its body, and the body.  It is read with a single mapping
+ *  of the file, and rejected if its version or checksum is wrong.  All
+ *  numbers are little-endian, and strings are a length followed by
+ *  UTF-16 characters.
+ *  @author Joseph Heupler
+ */
+final class ConfigImage {
+
+    /** An image of machines with alphabet ALPHA, NUMROTORS slots and
+     *  PAWLS pawls, whose available rotors are ROTORS. */
+    ConfigImage(Alphabet alpha, int numRotors, int pawls,
+                List<Rotor> rotors) {
+        _alphabet = alpha;
+        _numRotors = numRotors;
+        _pawls = pawls;
+        _rotors = rotors;
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the number of rotor slots of my machines. */
+    int numRotors() {
+        return _numRotors;
+    }
+
+    /** Return the number of pawls of my machines. */
+    int numPawls() {
+        return _pawls;
+    }
+
+    /** Return my available rotors. */
+    List<Rotor> rotors() {
+        return _rotors;
+    }
+
+    /** Return true iff FILE begins with the magic number of an image. */
+    static boolean isImage(Path file) {
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer magic =
+                ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) != -1) {
+                continue;
+            }
+            return !magic.hasRemaining() && magic.getLong(0) == MAGIC;
+        } catch (IOException | RuntimeException excp) {
+            return false;
+        }
+    }
+
+    /** Return the image in FILE. */
+    static ConfigImage read(Path file) {
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer image =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+            if (image.remaining() < HEADER || image.getLong() != MAGIC) {
+                throw error("%s is not a configuration image", file);
+            }
+            int version = image.getInt();
+            if (version != VERSION) {
+                throw error("%s has image version %d, not %d", file,
+                            version, VERSION);
+            }
+            int length = image.getInt(), checksum = image.getInt();
+            if (length != image.remaining()) {
+                throw error("%s is truncated", file);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(image.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                throw error("%s is corrupt (bad checksum)", file);
+            }
+            return decode(image);
+        } catch (IOException excp) {
+            throw error("could not read %s", file);
+        } catch (RuntimeException excp) {
+            if (excp instanceof EnigmaException) {
+                throw excp;
+            }
+            throw error("%s is malformed", file);
+        }
+    }
+
+    /** Write me to FILE, replacing it atomically (see
+     *  TableStore.replace). */
+    void write(Path file) {
+        ByteBuffer body = encode();
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        ByteBuffer header =
+            ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(body.remaining())
+            .putInt((int) crc.getValue()).flip();
+        TableStore.replace(file, out -> {
+            while (header.hasRemaining() || body.hasRemaining()) {
+                out.write(new ByteBuffer[] { header, body });
+            }
+        });
+    }
+
+    /** Return my body, ready to be written. */
+    private ByteBuffer encode() {
+        int n = _alphabet.size();
+        long size = 4 + 4 + 2L * n + 12;
+        for (Rotor r : _rotors) {
+            size += 1 + 12 + 2L * (r.name().length() + r.notches().length()
+                                   + r.permutation().cycles().length() + n);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw error("configuration too large for an image");
+        }
+        ByteBuffer body =
+            ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        body.putInt(_alphabet.isBytes() ? BYTES : 0);
+        putString(body, _alphabet.chars());
+        body.putInt(_numRotors).putInt(_pawls).putInt(_rotors.size());
+        for (Rotor r : _rotors) {
+            body.put(r.reflecting() ? REFLECTOR
+                     : r.rotates() ? MOVING : FIXED);
+            putString(body, r.name());
+            putString(body, r.notches());
+            putString(body, r.permutation().cycles());
+            for (int c = 0; c < n; c += 1) {
+                body.putChar((char) r.permutation().permute(c));
+            }
+        }
+        return body.flip();
+    }
+
+    /** Return the image whose body is the rest of BODY. */
+    private static ConfigImage decode(ByteBuffer body) {
+        int flags = body.getInt();
+        String chars = getString(body);
+        Alphabet alpha =
+            (flags & BYTES) != 0 ? Alphabet.ofBytes() : new Alphabet(chars);
+        int n = alpha.size();
+        if (n != chars.length()) {
+            throw error("alphabet of image does not match");
+        }
+        int numRotors = body.getInt(), pawls = body.getInt(),
+            count = body.getInt();
+        List<Rotor> rotors = new ArrayList<>();
+        for (int k = 0; k < count; k += 1) {
+            byte kind = body.get();
+            String name = getString(body), notches = getString(body),
+                cycles = getString(body);
+            int[] table = new int[n];
+            for (int c = 0; c < n; c += 1) {
+                table[c] = body.getChar();
+            }
+            Permutation perm = new Permutation(cycles, alpha, table);
+            if (kind == MOVING) {
+                rotors.add(new MovingRotor(name, perm, notches));
+            } else if (kind == FIXED) {
+                rotors.add(new FixedRotor(name, perm));
+            } else if (kind == REFLECTOR) {
+                rotors.add(new Reflector(name, perm));
+            } else {
+                throw error("unknown kind of rotor in image");
+            }
+        }
+        if (body.hasRemaining()) {
+            throw error("image has trailing data");
+        }
+        return new ConfigImage(alpha, numRotors, pawls, rotors);
+    }
+
+    /** Append S to BUF. */
+    private static void putString(ByteBuffer buf, String s) {
+        buf.putInt(s.length());
+        for (int i = 0; i < s.length(); i += 1) {
+            buf.putChar(s.charAt(i));
+        }
+    }
+
+    /** Return the string at the current position of BUF, and pass it. */
+    private static String getString(ByteBuffer buf) {
+        char[] chars = new char[buf.getInt()];
+        for (int i = 0; i < chars.length; i += 1) {
+            chars[i] = buf.getChar();
+        }
+        return new String(chars);
+    }
+
+    /** First eight bytes of an image ("ENIGCONF"). */
+    private static final long MAGIC = 0x464E4F4347494E45L;
+
+    /** Version of the image format written. */
+    private static final int VERSION = 1;
+
+    /** Length of the header: magic, version, body length and checksum. */
+    private static final int HEADER = 8 + 4 + 4 + 4;
+
+    /** Flag of the alphabet of byte values. */
+    private static final int BYTES = 1;
+
+    /** Kinds of rotor. */
+    private static final byte MOVING = 'M', FIXED = 'N', REFLECTOR = 'R';
+
+    /** My alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Number of slots, and of pawls, of my machines. */
+    private final int _numRotors, _pawls;
+
+    /** My available rotors. */
+    private final List<Rotor> _rotors;
+}
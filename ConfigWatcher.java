@@ -0,0 +1,86 @@
+package enigma;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/** Watches a file for changes on a daemon thread of its own, calling a
+ *  given action after each.  The changes an editor makes in saving a
+ *  file (truncating and writing it, or writing another file and
+ *  renaming it over this one) arrive as bursts of events, so the action
+ *  is called only once the file has been quiet for SETTLE_MILLIS.  The
+ *  action runs on the watching thread, off the path of any work it
+ *  affects; if it throws, the failure is reported and watching goes on.
+ *  @author Joseph Heupler
+ */
+final class ConfigWatcher {
+
+    /** Not instantiable. */
+    private ConfigWatcher() {
+    }
+
+    /** Start watching FILE, calling ACTION after each change, until the
+     *  result is closed. */
+    static Closeable watch(Path file, Runnable action) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        WatchService watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                     StandardWatchEventKinds.ENTRY_MODIFY);
+        Path name = file.getFileName();
+        Thread thread = new Thread(() -> run(watcher, name, action),
+                                   "enigma-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return watcher;
+    }
+
+    /** Body of the watching thread: wait for events of WATCHER about the
+     *  file named NAME, calling ACTION once each burst settles. */
+    private static void run(WatchService watcher, Path name,
+                            Runnable action) {
+        try (watcher) {
+            while (true) {
+                if (!changed(watcher.take(), name)) {
+                    continue;
+                }
+                for (WatchKey key = watcher.poll(SETTLE_MILLIS,
+                                                 TimeUnit.MILLISECONDS);
+                     key != null;
+                     key = watcher.poll(SETTLE_MILLIS,
+                                        TimeUnit.MILLISECONDS)) {
+                    changed(key, name);
+                }
+                try {
+                    action.run();
+                } catch (RuntimeException excp) {
+                    System.err.printf("Error: %s%n", excp.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException
+                 | IOException excp) {
+            return;
+        }
+    }
+
+    /** Return true iff one of the events of KEY concerns the file named
+     *  NAME, and make KEY ready for further events. */
+    private static boolean changed(WatchKey key, Path name) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            result |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                || name.equals(event.context());
+        }
+        key.reset();
+        return result;
+    }
+
+    /** Time a file must be left alone after a change before the action
+     *  is taken, in milliseconds. */
+    private static final long SETTLE_MILLIS = 200;
+}
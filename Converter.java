@@ -0,0 +1,23 @@
+package enigma;
+
+/** A converter specialized to a single machine configuration, whose rotor
+ *  positions can be exchanged with those of an Engine.
+ *  @author Joseph Heupler
+ */
+abstract class Converter {
+
+    /** Return the result of advancing my rotors and then converting C
+     *  (as an index in the range 0..alphabet size - 1). */
+    abstract int convert(int c);
+
+    /** Convert the LEN characters of BUF starting at OFF in place,
+     *  advancing my rotors before each one.  The characters must all be
+     *  in my alphabet. */
+    abstract void convert(char[] buf, int off, int len);
+
+    /** Set my rotor positions from POS, indexed by slot. */
+    abstract void load(int[] pos);
+
+    /** Copy my rotor positions into POS, indexed by slot. */
+    abstract void store(int[] pos);
+}
@@ -0,0 +1,413 @@
+package enigma;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static enigma.EnigmaException.*;
+
+/** A flattened snapshot of a configured Machine that converts characters
+ *  without virtual calls.  The rotor wirings, notches, plugboard and
+ *  positions are gathered into primitive arrays when the engine is built,
+ *  so the per-character work is a handful of array reads.
+ *  @author Joseph Heupler
+ */
+final class Engine {
+
+    /** An engine for the rotors ROTORS (ROTORS[0] is the reflector) at
+     *  their current settings, with plugboard PLUGBOARD (null for none). */
+    Engine(Rotor[] rotors, Permutation plugboard) {
+        int n = rotors[0].size();
+        int m = rotors.length;
+        _size = n;
+        _last = m - 1;
+        _plug = new int[n];
+        _plugCycles = plugboard == null ? "" : plugboard.cycles();
+        for (int c = 0; c < n; c += 1) {
+            _plug[c] = plugboard == null ? c : plugboard.permute(c);
+        }
+        _forward = new int[m][];
+        _backward = new int[m][];
+        _ring = new int[m];
+        _rotates = new boolean[m];
+        _notch = new boolean[m * n];
+        _pos = new int[m];
+        boolean tabular = true;
+        for (int i = 0; i < m; i += 1) {
+            tabular &= rotors[i].forwardTable() != null;
+        }
+        _tabular = tabular;
+        for (int i = 0; i < m; i += 1) {
+            Rotor r = rotors[i];
+            if (_tabular) {
+                _forward[i] = r.forwardTable();
+                _backward[i] = r.backwardTable();
+            } else {
+                _forward[i] = new int[n];
+                _backward[i] = new int[n];
+                for (int c = 0; c < n; c += 1) {
+                    _forward[i][c] = r.permutation().permute(c);
+                    _backward[i][c] = r.permutation().invert(c);
+                }
+            }
+            _ring[i] = r.ring();
+            _rotates[i] = r.rotates();
+            String notches = r.notches();
+            for (int k = 0; k < notches.length(); k += 1) {
+                if (r.alphabet().contains(notches.charAt(k))) {
+                    _notch[i * n + r.alphabet().toInt(notches.charAt(k))] =
+                        true;
+                }
+            }
+            _pos[i] = r.setting();
+        }
+        int fixedTop = 0;
+        while (fixedTop + 1 < _last && !_rotates[fixedTop + 1]) {
+            fixedTop += 1;
+        }
+        _fixedTop = fixedTop;
+        _toNotch = new int[n];
+        Arrays.fill(_toNotch, Integer.MAX_VALUE);
+        for (int k = 2 * n - 1; k >= 0; k -= 1) {
+            int s = k % n;
+            if (_notch[_last * n + s]) {
+                _toNotch[s] = 0;
+            } else if (_toNotch[(s + 1) % n] != Integer.MAX_VALUE) {
+                _toNotch[s] = _toNotch[(s + 1) % n] + 1;
+            }
+        }
+        _fold = new int[n];
+        _core = new int[n];
+        _coreThreshold = CORE_EPOCHS * n;
+        positionsChanged();
+    }
+
+    /** A new engine with the same configuration and positions as ENGINE,
+     *  sharing its (immutable) tables. */
+    Engine(Engine engine) {
+        _size = engine._size;
+        _last = engine._last;
+        _tabular = engine._tabular;
+        _plug = engine._plug;
+        _plugCycles = engine._plugCycles;
+        _forward = engine._forward;
+        _backward = engine._backward;
+        _ring = engine._ring;
+        _rotates = engine._rotates;
+        _notch = engine._notch;
+        _pos = engine._pos.clone();
+        _fixedTop = engine._fixedTop;
+        _toNotch = engine._toNotch;
+        _fold = engine._fold.clone();
+        _core = new int[_size];
+        _coreThreshold = engine._coreThreshold;
+        coreMoved();
+    }
+
+    /** Return the size of my alphabet. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the number of rotor slots I have, counting the reflector. */
+    int numSlots() {
+        return _last + 1;
+    }
+
+    /** Return the setting of the rotor in SLOT. */
+    int setting(int slot) {
+        return _pos[slot];
+    }
+
+    /** Return my rotor settings, indexed by slot.  The array is live;
+     *  callers that modify it must then call positionsChanged(). */
+    int[] positions() {
+        return _pos;
+    }
+
+    /** Note that the contents of positions() have been changed. */
+    void positionsChanged() {
+        for (int c = 0; c < _size; c += 1) {
+            int k = c;
+            for (int i = _fixedTop; i >= 0; i -= 1) {
+                k = through(i, _forward, k);
+            }
+            for (int i = 1; i <= _fixedTop; i += 1) {
+                k = through(i, _backward, k);
+            }
+            _fold[c] = k;
+        }
+        coreMoved();
+    }
+
+    /** Note that a rotor between the fixed ones and the fast rotor has
+     *  moved, so that _core is out of date. */
+    private void coreMoved() {
+        _coreValid = false;
+        _useCore = false;
+        _stableSteps = 0;
+    }
+
+    /** Return true iff my tables hold every setting of each rotor, as
+     *  produced by Rotor.precompute(). */
+    boolean tabular() {
+        return _tabular;
+    }
+
+    /** Return the forward table of the rotor in SLOT. */
+    int[] forwardTable(int slot) {
+        return _forward[slot];
+    }
+
+    /** Return the inverse table of the rotor in SLOT. */
+    int[] backwardTable(int slot) {
+        return _backward[slot];
+    }
+
+    /** Return my plugboard as a table. */
+    int[] plugTable() {
+        return _plug;
+    }
+
+    /** Return the cycles of my plugboard, or "" if there is none. */
+    String plugboardCycles() {
+        return _plugCycles;
+    }
+
+    /** Return true iff the rotor in SLOT can advance. */
+    boolean rotates(int slot) {
+        return _rotates[slot];
+    }
+
+    /** Return true iff the rotor in SLOT is at a notch at SETTING. */
+    boolean atNotch(int slot, int setting) {
+        return _notch[slot * _size + setting];
+    }
+
+    /** Copy my rotor settings into ROTORS, which must be the rotors I
+     *  was built from. */
+    void store(Rotor[] rotors) {
+        for (int i = 1; i <= _last; i += 1) {
+            rotors[i].set(_pos[i]);
+        }
+    }
+
+    /** Copy the settings of ROTORS, which must be the rotors I was built
+     *  from, into my own. */
+    void load(Rotor[] rotors) {
+        for (int i = 1; i <= _last; i += 1) {
+            _pos[i] = rotors[i].setting();
+        }
+        positionsChanged();
+    }
+
+    /** Return the result of advancing my rotors and then converting C
+     *  (as an index in the range 0..size()-1). */
+    int convert(int c) {
+        step();
+        return map(c);
+    }
+
+    /** Advance my rotors by one keystroke, following the same pawl and
+     *  notch rules as Machine, including the double step of the middle
+     *  rotors. */
+    void step() {
+        int n = _size;
+        int[] pos = _pos;
+        boolean[] notch = _notch, rotates = _rotates;
+        boolean coreMoved = false;
+        for (int i = 1; i < _last; i += 1) {
+            if (rotates[i]
+                && (notch[(i + 1) * n + pos[i + 1]]
+                    || rotates[i - 1] && notch[i * n + pos[i]])) {
+                pos[i] = pos[i] + 1 == n ? 0 : pos[i] + 1;
+                coreMoved = true;
+            }
+        }
+        if (coreMoved) {
+            coreMoved();
+        } else if (++_stableSteps == _coreThreshold) {
+            _useCore = true;
+        }
+        if (rotates[_last]) {
+            pos[_last] = pos[_last] + 1 == n ? 0 : pos[_last] + 1;
+        }
+    }
+
+    /** Advance my rotors by N keystrokes, leaving them as N calls of
+     *  step() would.  Between keystrokes that move a rotor other than
+     *  the fast one, only the fast rotor moves, so those stretches are
+     *  taken in one addition; and since the positions eventually repeat,
+     *  the steps between two visits to the same positions are removed
+     *  from N once one is found.  The cost is therefore proportional to
+     *  the number of notch events in min(N, period), not to N. */
+    void skip(long n) {
+        if (n < 0) {
+            throw error("cannot skip %d keystrokes", n);
+        }
+        boolean fits =
+            _last * (32 - Integer.numberOfLeadingZeros(_size)) <= 62;
+        HashMap<Long, Long> seen = fits ? new HashMap<>() : null;
+        while (n > 0) {
+            long quiet = Math.min(n, quietSteps());
+            if (_rotates[_last]) {
+                _pos[_last] = (int) ((_pos[_last] + quiet) % _size);
+            }
+            n -= quiet;
+            if (n == 0) {
+                break;
+            }
+            if (seen != null) {
+                long state = 0;
+                for (int i = 1; i <= _last; i += 1) {
+                    state = state * _size + _pos[i];
+                }
+                Long earlier = seen.put(state, n);
+                if (earlier != null) {
+                    n %= earlier - n;
+                    seen = null;
+                    continue;
+                }
+            }
+            step();
+            n -= 1;
+        }
+        positionsChanged();
+    }
+
+    /** Return the number of keystrokes from my current positions that
+     *  will move only the fast rotor, or Integer.MAX_VALUE if there is
+     *  no limit. */
+    private int quietSteps() {
+        int n = _size;
+        for (int i = 1; i < _last; i += 1) {
+            if (_rotates[i]
+                && (i + 1 < _last && _notch[(i + 1) * n + _pos[i + 1]]
+                    || _rotates[i - 1] && _notch[i * n + _pos[i]])) {
+                return 0;
+            }
+        }
+        if (_last < 2 || !_rotates[_last - 1]) {
+            return Integer.MAX_VALUE;
+        }
+        return _toNotch[_pos[_last]];
+    }
+
+    /** Return the conversion of C by the plugboard, rotors and reflector
+     *  at my current settings, without advancing. */
+    int map(int c) {
+        c = _plug[c];
+        if (_last == 0) {
+            return _plug[_fold[c]];
+        }
+        c = through(_last, _forward, c);
+        if (_useCore) {
+            if (!_coreValid) {
+                for (int k = 0; k < _size; k += 1) {
+                    _core[k] = core(k);
+                }
+                _coreValid = true;
+            }
+            c = _core[c];
+        } else {
+            c = core(c);
+        }
+        return _plug[through(_last, _backward, c)];
+    }
+
+    /** Return the conversion of C by every slot to the left of the fast
+     *  rotor, there to the reflector and back. */
+    private int core(int c) {
+        for (int i = _last - 1; i > _fixedTop; i -= 1) {
+            c = through(i, _forward, c);
+        }
+        c = _fold[c];
+        for (int i = _fixedTop + 1; i < _last; i += 1) {
+            c = through(i, _backward, c);
+        }
+        return c;
+    }
+
+    /** Return the conversion of C by the rotor in SLOT at its current
+     *  setting, using TABLES (_forward or _backward). */
+    private int through(int slot, int[][] tables, int c) {
+        if (_tabular) {
+            return tables[slot][_pos[slot] * _size + c];
+        }
+        return shift(tables[slot], c, _pos[slot] - _ring[slot]);
+    }
+
+    /** Return TABLE applied to C at offset OFFSET, where 0 <= C < size()
+     *  and -size() < OFFSET < size(). */
+    private int shift(int[] table, int c, int offset) {
+        int n = _size;
+        int p = c + offset;
+        p = p < 0 ? p + n : p >= n ? p - n : p;
+        int r = table[p] - offset;
+        return r < 0 ? r + n : r >= n ? r - n : r;
+    }
+
+    /** Size of my alphabet. */
+    private final int _size;
+
+    /** Index of my fast rotor. */
+    private final int _last;
+
+    /** True iff _forward and _backward hold every setting of each rotor
+     *  (indexed SETTING * _size + C) rather than only setting 0. */
+    private final boolean _tabular;
+
+    /** The plugboard, as a table (the identity if there is none). */
+    private final int[] _plug;
+
+    /** The cycles of the plugboard, or "" if there is none. */
+    private final String _plugCycles;
+
+    /** Forward and inverse tables of the rotor in each slot. */
+    private final int[][] _forward, _backward;
+
+    /** Ring setting of the rotor in each slot. */
+    private final int[] _ring;
+
+    /** True for each slot whose rotor can advance. */
+    private final boolean[] _rotates;
+
+    /** _notch[SLOT * _size + S] is true iff the rotor in SLOT is at a
+     *  notch when at setting S. */
+    private final boolean[] _notch;
+
+    /** Current setting of the rotor in each slot. */
+    private final int[] _pos;
+
+    /** Slots 0 through _fixedTop (the reflector and any rotors next to
+     *  it that cannot move) are composed into _fold. */
+    private final int _fixedTop;
+
+    /** _toNotch[S] is the number of advances that take the fast rotor
+     *  from setting S to one of its notches (Integer.MAX_VALUE if it has
+     *  none). */
+    private final int[] _toNotch;
+
+    /** _fold[C] is the conversion of C through slots _fixedTop..0 and
+     *  back out again; it changes only with positions(). */
+    private final int[] _fold;
+
+    /** When _coreValid, _core[C] is core(C), the conversion of C by
+     *  every slot left of the fast rotor.  Only the fast rotor moves on
+     *  most keystrokes, but a rotor of size N with one notch also moves
+     *  the next one every N keystrokes, which is too often to repay
+     *  refilling _core.  So _core is used (_useCore) only once the
+     *  slots it covers have been still for _coreThreshold keystrokes. */
+    private final int[] _core;
+
+    /** See _core. */
+    private boolean _coreValid, _useCore;
+
+    /** Keystrokes since a slot covered by _core last moved. */
+    private int _stableSteps;
+
+    /** Value of _stableSteps at which _core starts being used. */
+    private final int _coreThreshold;
+
+    /** _coreThreshold, in units of the alphabet size. */
+    private static final int CORE_EPOCHS = 2;
+}
@@ -0,0 +1,488 @@
+package enigma;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Generates, for the configuration of an Engine, a hidden class whose
+ *  convert methods are straight-line code: the number of rotors, the
+ *  alphabet size and which rotors step are baked into the bytecode, and
+ *  the tables are static final fields of the generated class.  Only the
+ *  rotor positions remain as (instance) state.
+ *  @author Joseph Heupler
+ */
+final class EngineCompiler {
+
+    /** Not instantiable. */
+    private EngineCompiler() {
+    }
+
+    /** Return a new Converter specialized to the configuration of ENGINE,
+     *  whose characters come from ALPHABET, positioned as ENGINE is.
+     *  Returns null if ENGINE cannot be specialized, in which case the
+     *  caller should keep using ENGINE. */
+    static Converter compile(Engine engine, Alphabet alphabet) {
+        if (!engine.tabular()) {
+            return null;
+        }
+        List<Object> key = new ArrayList<>();
+        for (int i = 0; i < engine.numSlots(); i += 1) {
+            key.add(engine.forwardTable(i));
+        }
+        key.add(engine.plugboardCycles());
+        key.add(alphabet);
+        try {
+            Class<?> generated;
+            synchronized (CACHE) {
+                generated = CACHE.get(key);
+            }
+            if (generated == null) {
+                generated = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(
+                        new EngineCompiler().generate(engine),
+                        classData(engine, alphabet), true)
+                    .lookupClass();
+                synchronized (CACHE) {
+                    CACHE.put(key, generated);
+                }
+            }
+            Converter result =
+                (Converter) generated.getDeclaredConstructor().newInstance();
+            result.load(engine.positions());
+            return result;
+        } catch (ReflectiveOperationException | LinkageError excp) {
+            return null;
+        }
+    }
+
+    /** Return the static data of the class generated for ENGINE and
+     *  ALPHABET, in the order in which generate() declares it. */
+    private static Object[] classData(Engine engine, Alphabet alphabet) {
+        int n = engine.size(), m = engine.numSlots();
+        Object[] data = new Object[FIRST_TABLE + 3 * m];
+        int[] inc = new int[n + 1];
+        for (int k = 0; k < n; k += 1) {
+            inc[k] = k;
+        }
+        data[ALPHA] = alphabet;
+        data[PLUG] = engine.plugTable();
+        data[INC] = inc;
+        for (int i = 0; i < m; i += 1) {
+            int[] notch = new int[n];
+            for (int s = 0; s < n; s += 1) {
+                notch[s] = engine.atNotch(i, s) ? 1 : 0;
+            }
+            data[FIRST_TABLE + 3 * i] = engine.forwardTable(i);
+            data[FIRST_TABLE + 3 * i + 1] = engine.backwardTable(i);
+            data[FIRST_TABLE + 3 * i + 2] = notch;
+        }
+        return data;
+    }
+
+    /** Return the class file of a subclass of Converter specialized to
+     *  ENGINE. */
+    private byte[] generate(Engine engine) {
+        int n = engine.size(), last = engine.numSlots() - 1;
+        _self = cls(SELF);
+        _data = new int[FIRST_TABLE + 3 * (last + 1)];
+        _data[ALPHA] = field(SELF, "ALPHA", "Lenigma/Alphabet;");
+        _data[PLUG] = field(SELF, "PLUG", "[I");
+        _data[INC] = field(SELF, "INC", "[I");
+        _pos = new int[last + 1];
+        for (int i = 0; i <= last; i += 1) {
+            _data[FIRST_TABLE + 3 * i] = field(SELF, "F" + i, "[I");
+            _data[FIRST_TABLE + 3 * i + 1] = field(SELF, "B" + i, "[I");
+            _data[FIRST_TABLE + 3 * i + 2] = field(SELF, "N" + i, "[I");
+            _pos[i] = field(SELF, "p" + i, "I");
+        }
+        boolean[] notched = new boolean[last + 1];
+        for (int i = 0; i <= last; i += 1) {
+            for (int s = 0; s < n; s += 1) {
+                notched[i] |= engine.atNotch(i, s);
+            }
+        }
+
+        Code clinit = new Code(1, 5);
+        clinit.op(INVOKESTATIC).u2(method("java/lang/invoke/MethodHandles",
+            "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;"));
+        clinit.ldc(string("_"));
+        clinit.ldc(cls("[Ljava/lang/Object;"));
+        clinit.op(INVOKESTATIC).u2(method("java/lang/invoke/MethodHandles",
+            "classData", "(Ljava/lang/invoke/MethodHandles$Lookup;"
+            + "Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+        clinit.op(CHECKCAST).u2(cls("[Ljava/lang/Object;"));
+        clinit.op(ASTORE_0);
+        for (int k = 0; k < _data.length; k += 1) {
+            clinit.op(ALOAD_0).constant(k).op(AALOAD);
+            clinit.op(CHECKCAST)
+                .u2(cls(k == ALPHA ? "enigma/Alphabet" : "[I"));
+            clinit.op(PUTSTATIC).u2(_data[k]);
+        }
+        clinit.op(RETURN);
+
+        Code init = new Code(1, 1);
+        init.op(ALOAD_0).op(INVOKESPECIAL)
+            .u2(method(SUPER, "<init>", "()V")).op(RETURN);
+
+        Code convert = new Code(2 + 1, 8);
+        for (int i = 1; i < last; i += 1) {
+            boolean carry = notched[i + 1];
+            boolean self = engine.rotates(i - 1) && notched[i];
+            if (!engine.rotates(i) || !carry && !self) {
+                continue;
+            }
+            if (carry) {
+                convert.op(GETSTATIC).u2(notch(i + 1)).position(i + 1)
+                    .op(IALOAD);
+            }
+            if (self) {
+                convert.op(GETSTATIC).u2(notch(i)).position(i).op(IALOAD);
+                if (carry) {
+                    convert.op(IOR);
+                }
+            }
+            convert.op(ISTORE_2);
+            convert.op(ALOAD_0).op(GETSTATIC).u2(_data[INC]).position(i)
+                .op(ILOAD_2).op(IADD).op(IALOAD).op(PUTFIELD).u2(_pos[i]);
+        }
+        if (engine.rotates(last)) {
+            convert.op(ALOAD_0).op(GETSTATIC).u2(_data[INC]).position(last)
+                .op(ICONST_1).op(IADD).op(IALOAD).op(PUTFIELD)
+                .u2(_pos[last]);
+        }
+        convert.op(GETSTATIC).u2(_data[PLUG]).op(ILOAD_1).op(IALOAD)
+            .op(ISTORE_1);
+        for (int i = last; i >= 0; i -= 1) {
+            lookUp(convert, _data[FIRST_TABLE + 3 * i], i, n);
+        }
+        for (int i = 1; i <= last; i += 1) {
+            lookUp(convert, _data[FIRST_TABLE + 3 * i + 1], i, n);
+        }
+        convert.op(GETSTATIC).u2(_data[PLUG]).op(ILOAD_1).op(IALOAD)
+            .op(IRETURN);
+
+        int toInt = method("enigma/Alphabet", "toInt", "(C)I");
+        int toChar = method("enigma/Alphabet", "toChar", "(I)C");
+        int convertInt = method(SELF, "convert", "(I)I");
+        Code bulk = new Code(6, 8);
+        bulk.op(ILOAD_2).op(ILOAD_3).op(IADD).op(ISTORE).u1(4);
+        bulk.op(ILOAD_2).op(ISTORE).u1(5);
+        int loop = bulk.size();
+        bulk.op(ILOAD).u1(5).op(ILOAD).u1(4);
+        int exit = bulk.size();
+        bulk.op(IF_ICMPGE).u2(0);
+        bulk.op(ALOAD_1).op(ILOAD).u1(5).op(GETSTATIC).u2(_data[ALPHA]);
+        bulk.op(ALOAD_0).op(GETSTATIC).u2(_data[ALPHA]);
+        bulk.op(ALOAD_1).op(ILOAD).u1(5).op(CALOAD);
+        bulk.op(INVOKEVIRTUAL).u2(toInt).op(INVOKEVIRTUAL).u2(convertInt);
+        bulk.op(INVOKEVIRTUAL).u2(toChar).op(CASTORE);
+        bulk.op(IINC).u1(5).u1(1);
+        bulk.op(GOTO).u2(loop - bulk.size() + 1);
+        bulk.patch(exit + 1, bulk.size() - exit);
+        bulk.op(RETURN);
+
+        Code load = new Code(2, 3);
+        Code store = new Code(2, 3);
+        for (int i = 1; i <= last; i += 1) {
+            load.op(ALOAD_0).op(ALOAD_1).constant(i).op(IALOAD)
+                .op(PUTFIELD).u2(_pos[i]);
+            store.op(ALOAD_1).constant(i).position(i).op(IASTORE);
+        }
+        load.op(RETURN);
+        store.op(RETURN);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int superClass = cls(SUPER);
+            int codeName = utf8("Code");
+            int[][] methods = {
+                { 0x0008, utf8("<clinit>"), utf8("()V") },
+                { 0x0001, utf8("<init>"), utf8("()V") },
+                { 0x0000, utf8("convert"), utf8("(I)I") },
+                { 0x0000, utf8("convert"), utf8("([CII)V") },
+                { 0x0000, utf8("load"), utf8("([I)V") },
+                { 0x0000, utf8("store"), utf8("([I)V") },
+            };
+            Code[] bodies = { clinit, init, convert, bulk, load, store };
+            int[][] fields = new int[_data.length + last + 1][];
+            for (int k = 0; k < _data.length; k += 1) {
+                fields[k] = new int[] { 0x001A, _fieldNames.get(_data[k]),
+                                        _fieldTypes.get(_data[k]) };
+            }
+            for (int i = 0; i <= last; i += 1) {
+                fields[_data.length + i] = new int[] {
+                    0x0002, _fieldNames.get(_pos[i]),
+                    _fieldTypes.get(_pos[i]) };
+            }
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(_poolSize);
+            out.write(_pool.toByteArray());
+            out.writeShort(0x0030);
+            out.writeShort(_self);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.length);
+            for (int[] f : fields) {
+                out.writeShort(f[0]);
+                out.writeShort(f[1]);
+                out.writeShort(f[2]);
+                out.writeShort(0);
+            }
+            out.writeShort(methods.length);
+            for (int k = 0; k < methods.length; k += 1) {
+                out.writeShort(methods[k][0]);
+                out.writeShort(methods[k][1]);
+                out.writeShort(methods[k][2]);
+                out.writeShort(1);
+                bodies[k].writeTo(out, codeName);
+            }
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new AssertionError(excp);
+        }
+    }
+
+    /** Append to CODE the replacement of local 1 by TABLE[p * N + local 1],
+     *  where TABLE is the static field at constant TABLE and p is the
+     *  position of SLOT (always 0 for the reflector). */
+    private void lookUp(Code code, int table, int slot, int n) {
+        code.op(GETSTATIC).u2(table);
+        if (slot != 0) {
+            code.position(slot).constant(n).op(IMUL).op(ILOAD_1).op(IADD);
+        } else {
+            code.op(ILOAD_1);
+        }
+        code.op(IALOAD).op(ISTORE_1);
+    }
+
+    /** Return the constant for the notch table of SLOT. */
+    private int notch(int slot) {
+        return _data[FIRST_TABLE + 3 * slot + 2];
+    }
+
+    /** Bytecode of one method. */
+    private final class Code {
+
+        /** A method body with MAXLOCALS locals and MAXSTACK stack. */
+        Code(int maxLocals, int maxStack) {
+            _maxLocals = maxLocals;
+            _maxStack = maxStack;
+        }
+
+        /** Append the opcode OPCODE. */
+        Code op(int opcode) {
+            _bytes.write(opcode);
+            return this;
+        }
+
+        /** Append the byte VAL. */
+        Code u1(int val) {
+            _bytes.write(val);
+            return this;
+        }
+
+        /** Append the two-byte value VAL. */
+        Code u2(int val) {
+            _bytes.write(val >> 8);
+            _bytes.write(val);
+            return this;
+        }
+
+        /** Append a load of constant pool entry INDEX. */
+        Code ldc(int index) {
+            return index < 256 ? op(LDC).u1(index) : op(LDC_W).u2(index);
+        }
+
+        /** Append a push of the int VAL. */
+        Code constant(int val) {
+            if (val >= -1 && val <= 5) {
+                return op(ICONST_0 + val);
+            } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+                return op(BIPUSH).u1(val);
+            } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+                return op(SIPUSH).u2(val);
+            }
+            return ldc(integer(val));
+        }
+
+        /** Append a push of this.p<SLOT>. */
+        Code position(int slot) {
+            return op(ALOAD_0).op(GETFIELD).u2(_pos[slot]);
+        }
+
+        /** Overwrite the two bytes at AT with VAL. */
+        void patch(int at, int val) {
+            byte[] b = _bytes.toByteArray();
+            b[at] = (byte) (val >> 8);
+            b[at + 1] = (byte) val;
+            _bytes.reset();
+            _bytes.write(b, 0, b.length);
+        }
+
+        /** Return the number of bytes appended so far. */
+        int size() {
+            return _bytes.size();
+        }
+
+        /** Write me as a Code attribute named by constant NAME to OUT. */
+        void writeTo(DataOutputStream out, int name) throws IOException {
+            out.writeShort(name);
+            out.writeInt(12 + _bytes.size());
+            out.writeShort(_maxStack);
+            out.writeShort(_maxLocals);
+            out.writeInt(_bytes.size());
+            _bytes.writeTo(out);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+
+        /** Limits declared for this method. */
+        private final int _maxLocals, _maxStack;
+
+        /** The instructions. */
+        private final ByteArrayOutputStream _bytes =
+            new ByteArrayOutputStream();
+    }
+
+    /** Return the constant pool index of the Utf8 constant TEXT. */
+    private int utf8(String text) {
+        return constant("U" + text, 1, text, 0, 0);
+    }
+
+    /** Return the constant pool index of the class named NAME. */
+    private int cls(String name) {
+        return constant("C" + name, 7, null, utf8(name), 0);
+    }
+
+    /** Return the constant pool index of the String constant TEXT. */
+    private int string(String text) {
+        return constant("S" + text, 8, null, utf8(text), 0);
+    }
+
+    /** Return the constant pool index of the int constant VAL. */
+    private int integer(int val) {
+        return constant("I" + val, 3, null, val >>> 16, val & 0xFFFF);
+    }
+
+    /** Return the constant pool index of the field NAME of type DESC in
+     *  class OWNER. */
+    private int field(String owner, String name, String desc) {
+        int nameIndex = utf8(name), typeIndex = utf8(desc);
+        int result = constant("F" + owner + "." + name + ":" + desc, 9, null,
+                              cls(owner), nameType(nameIndex, typeIndex));
+        _fieldNames.put(result, nameIndex);
+        _fieldTypes.put(result, typeIndex);
+        return result;
+    }
+
+    /** Return the constant pool index of the method NAME of type DESC in
+     *  class OWNER. */
+    private int method(String owner, String name, String desc) {
+        return constant("M" + owner + "." + name + desc, 10, null, cls(owner),
+                        nameType(utf8(name), utf8(desc)));
+    }
+
+    /** Return the constant pool index of the NameAndType NAME, TYPE. */
+    private int nameType(int name, int type) {
+        return constant("N" + name + ":" + type, 12, null, name, type);
+    }
+
+    /** Return the constant pool index of the constant identified by KEY,
+     *  adding it with tag TAG and contents TEXT (for Utf8 entries) or
+     *  the two-byte values A and B if it is not yet present. */
+    private int constant(String key, int tag, String text, int a, int b) {
+        Integer index = _constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(_pool);
+            out.writeByte(tag);
+            if (text != null) {
+                out.writeUTF(text);
+            } else if (tag == 7 || tag == 8) {
+                out.writeShort(a);
+            } else {
+                out.writeShort(a);
+                out.writeShort(b);
+            }
+        } catch (IOException excp) {
+            throw new AssertionError(excp);
+        }
+        _constants.put(key, _poolSize);
+        _poolSize += 1;
+        return _poolSize - 1;
+    }
+
+    /** Name of the generated class, which must be in this package. */
+    private static final String SELF = "enigma/CompiledEngine";
+
+    /** Name of its superclass. */
+    private static final String SUPER = "enigma/Converter";
+
+    /** Class files up to version 49 are verified by type inference, so
+     *  generate() need not emit stack map frames for its one loop. */
+    private static final int CLASS_VERSION = 49;
+
+    /** Positions of the static fields in the class data. */
+    private static final int ALPHA = 0, PLUG = 1, INC = 2, FIRST_TABLE = 3;
+
+    /** Opcodes used by generate(). */
+    private static final int
+        ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11,
+        LDC = 0x12, LDC_W = 0x13, ILOAD = 0x15, ILOAD_1 = 0x1B,
+        ILOAD_2 = 0x1C, ILOAD_3 = 0x1D, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B,
+        IALOAD = 0x2E, AALOAD = 0x32, CALOAD = 0x34, ISTORE = 0x36,
+        ISTORE_1 = 0x3C, ISTORE_2 = 0x3D, ASTORE_0 = 0x4B, IASTORE = 0x4F,
+        CASTORE = 0x55, IADD = 0x60, IMUL = 0x68, IOR = 0x80, IINC = 0x84,
+        IF_ICMPGE = 0xA2, GOTO = 0xA7, IRETURN = 0xAC, RETURN = 0xB1,
+        GETSTATIC = 0xB2, PUTSTATIC = 0xB3, GETFIELD = 0xB4,
+        PUTFIELD = 0xB5, INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7,
+        INVOKESTATIC = 0xB8, CHECKCAST = 0xC0;
+
+    /** Generated classes by configuration, least recently used first. */
+    private static final Map<List<Object>, Class<?>> CACHE =
+        new LinkedHashMap<List<Object>, Class<?>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<List<Object>, Class<?>> eldest) {
+                return size() > MAX_CLASSES;
+            }
+        };
+
+    /** Number of generated classes kept in CACHE. */
+    private static final int MAX_CLASSES = 64;
+
+    /** The constant pool being built. */
+    private final ByteArrayOutputStream _pool = new ByteArrayOutputStream();
+
+    /** Index of each constant added to _pool, by key. */
+    private final Map<String, Integer> _constants = new HashMap<>();
+
+    /** Name and descriptor constants of each field constant. */
+    private final Map<Integer, Integer> _fieldNames = new HashMap<>(),
+        _fieldTypes = new HashMap<>();
+
+    /** Number of constant pool entries, plus one. */
+    private int _poolSize = 1;
+
+    /** Constant pool index of the generated class. */
+    private int _self;
+
+    /** Field constants of the class data, in class data order. */
+    private int[] _data;
+
+    /** Field constants of the rotor positions, by slot. */
+    private int[] _pos;
+}
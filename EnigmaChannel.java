@@ -0,0 +1,239 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** Channels and streams that pass data through a Machine, so that it can
+ *  be placed in an existing pipeline.  Each byte is a character in the
+ *  ISO 8859-1 encoding, converted as by Machine.convert(ByteBuffer,
+ *  ByteBuffer); since a machine is its own inverse, the same wrapper
+ *  both encrypts and decrypts.  Conversion goes through one buffer per
+ *  wrapper, allocated when it is made, so nothing is allocated as data
+ *  flows.  A wrapper advances its machine and so must not share it.
+ *  @author Joseph Heupler
+ */
+final class EnigmaChannel {
+
+    /** Not instantiable. */
+    private EnigmaChannel() {
+    }
+
+    /** Return a channel whose bytes are those of IN converted by
+     *  MACHINE. */
+    static ReadableByteChannel readable(ReadableByteChannel in,
+                                        Machine machine) {
+        return new Reading(in, machine);
+    }
+
+    /** Return a channel that converts the bytes written to it by MACHINE
+     *  and writes them to OUT. */
+    static WritableByteChannel writable(WritableByteChannel out,
+                                        Machine machine) {
+        return new Writing(out, machine);
+    }
+
+    /** Return a stream whose bytes are those of IN converted by
+     *  MACHINE. */
+    static InputStream inputStream(InputStream in, Machine machine) {
+        return new Input(in, machine);
+    }
+
+    /** Return a stream that converts the bytes written to it by MACHINE
+     *  and writes them to OUT. */
+    static OutputStream outputStream(OutputStream out, Machine machine) {
+        return new Output(out, machine);
+    }
+
+    /** See readable. */
+    private static class Reading implements ReadableByteChannel {
+
+        /** A channel converting the bytes of IN with MACHINE. */
+        Reading(ReadableByteChannel in, Machine machine) {
+            _in = in;
+            _machine = machine;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int result = 0;
+            while (result == 0 && dst.hasRemaining()) {
+                _buffer.clear();
+                _buffer.limit(Math.min(_buffer.capacity(), dst.remaining()));
+                int n = _in.read(_buffer);
+                if (n <= 0) {
+                    return n;
+                }
+                _buffer.flip();
+                result = _machine.convert(_buffer, dst);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _in.close();
+        }
+
+        /** Source of unconverted bytes. */
+        private final ReadableByteChannel _in;
+
+        /** Machine converting them. */
+        private final Machine _machine;
+
+        /** Unconverted bytes. */
+        private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER);
+    }
+
+    /** See writable. */
+    private static class Writing implements WritableByteChannel {
+
+        /** A channel converting bytes with MACHINE and writing them to
+         *  OUT. */
+        Writing(WritableByteChannel out, Machine machine) {
+            _out = out;
+            _machine = machine;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int start = src.position();
+            while (src.hasRemaining()) {
+                _buffer.clear();
+                _machine.convert(src, _buffer);
+                _buffer.flip();
+                while (_buffer.hasRemaining()) {
+                    _out.write(_buffer);
+                }
+            }
+            return src.position() - start;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _out.close();
+        }
+
+        /** Destination of converted bytes. */
+        private final WritableByteChannel _out;
+
+        /** Machine converting them. */
+        private final Machine _machine;
+
+        /** Converted bytes. */
+        private final ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER);
+    }
+
+    /** See inputStream. */
+    private static class Input extends InputStream {
+
+        /** A stream converting the bytes of IN with MACHINE. */
+        Input(InputStream in, Machine machine) {
+            _in = in;
+            _machine = machine;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(_single, 0, 1) == -1 ? -1 : _single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = 0;
+            while (result == 0 && len > 0) {
+                int n = _in.read(b, off, len);
+                if (n == -1) {
+                    return -1;
+                }
+                result = _machine.convert(b, off, n, b, off);
+            }
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return _in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _in.close();
+        }
+
+        /** Source of unconverted bytes. */
+        private final InputStream _in;
+
+        /** Machine converting them. */
+        private final Machine _machine;
+
+        /** Buffer for read(). */
+        private final byte[] _single = new byte[1];
+    }
+
+    /** See outputStream. */
+    private static class Output extends OutputStream {
+
+        /** A stream converting bytes with MACHINE and writing them to
+         *  OUT. */
+        Output(OutputStream out, Machine machine) {
+            _out = out;
+            _machine = machine;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            _single[0] = (byte) b;
+            write(_single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, _buffer.length);
+                _out.write(_buffer, 0,
+                           _machine.convert(b, off, n, _buffer, 0));
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            _out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _out.close();
+        }
+
+        /** Destination of converted bytes. */
+        private final OutputStream _out;
+
+        /** Machine converting them. */
+        private final Machine _machine;
+
+        /** Converted bytes. */
+        private final byte[] _buffer = new byte[BUFFER];
+
+        /** Buffer for write(int). */
+        private final byte[] _single = new byte[1];
+    }
+
+    /** Size of the buffer of each wrapper. */
+    private static final int BUFFER = 1 << 16;
+}
@@ -0,0 +1,179 @@
+package enigma;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static enigma.EnigmaException.*;
+
+/** A client of Server, holding one connection and so one session.  Its
+ *  main program is a load test (see main).
+ *  @author Joseph Heupler
+ */
+final class EnigmaClient implements Closeable {
+
+    /** A client connected to the server listening at SOCKET. */
+    EnigmaClient(Path socket) throws IOException {
+        _channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        _channel.connect(UnixDomainSocketAddress.of(socket));
+    }
+
+    /** Set up my session according to the settings line SETTINGS. */
+    void setUp(String settings) throws IOException {
+        if (settings.getBytes(StandardCharsets.UTF_8).length
+            > Server.MAX_PAYLOAD) {
+            throw error("settings line too long");
+        }
+        request(Server.SETTINGS, settings);
+    }
+
+    /** Return the conversion of MSG by my session, which advances it.
+     *  Long messages are sent in several frames. */
+    String convert(String msg) throws IOException {
+        if (msg.length() <= CHUNK) {
+            return request(Server.MESSAGE, msg);
+        }
+        StringBuilder result = new StringBuilder(msg.length());
+        for (int i = 0; i < msg.length(); i += CHUNK) {
+            result.append(request(Server.MESSAGE,
+                                  msg.substring(i, Math.min(msg.length(),
+                                                            i + CHUNK))));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+
+    /** Send a frame of type TYPE holding PAYLOAD and return the payload
+     *  of the answer, throwing an EnigmaException if it is an error. */
+    private String request(byte type, String payload) throws IOException {
+        Server.write(_channel, _out, type, payload);
+        _in.clear().limit(Server.HEADER);
+        if (!Server.fill(_channel, _in)) {
+            throw new IOException("server closed the connection");
+        }
+        byte answer = _in.get(0);
+        int length = _in.getInt(1);
+        if (length < 0 || length > Server.MAX_REPLY) {
+            throw new IOException("malformed frame from server");
+        }
+        _in.limit(Server.HEADER + length);
+        if (!Server.fill(_channel, _in)) {
+            throw new IOException("server closed the connection");
+        }
+        String result = new String(_in.array(), Server.HEADER, length,
+                                   StandardCharsets.UTF_8);
+        if (answer == Server.ERROR) {
+            throw error("%s", result);
+        }
+        return result;
+    }
+
+    /** Load test of the server listening at ARGS[0]: ARGS[2] clients
+     *  (default 100) each connect, set up with the settings line ARGS[1],
+     *  and convert ARGS[3] short messages (default 1000) one at a time.
+     *  Prints the throughput and the distribution of latencies. */
+    public static void main(String... args) {
+        try {
+            if (args.length < 2 || args.length > 4) {
+                throw error("Usage: java enigma.EnigmaClient SOCKET "
+                            + "SETTINGS [CLIENTS [MESSAGES]]");
+            }
+            Path socket = Paths.get(args[0]);
+            int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100,
+                messages = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+            loadTest(socket, args[1], clients, messages);
+            return;
+        } catch (EnigmaException excp) {
+            System.err.printf("Error: %s%n", excp.getMessage());
+        } catch (NumberFormatException excp) {
+            System.err.printf("Error: bad number %s%n", excp.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /** Run the load test described at main, with CLIENTS clients of the
+     *  server at SOCKET each set up with SETTINGS and converting MESSAGES
+     *  messages. */
+    private static void loadTest(Path socket, String settings, int clients,
+                                 int messages) {
+        ExecutorService threads = Server.threads("enigma-client");
+        List<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i += 1) {
+            results.add(threads.submit(() -> {
+                long[] latencies = new long[messages];
+                try (EnigmaClient client = new EnigmaClient(socket)) {
+                    client.setUp(settings);
+                    for (int k = 0; k < messages; k += 1) {
+                        long before = System.nanoTime();
+                        client.convert(LOAD_MESSAGE);
+                        latencies[k] = System.nanoTime() - before;
+                    }
+                }
+                return latencies;
+            }));
+        }
+        long[] all = new long[clients * messages];
+        try {
+            for (int i = 0; i < clients; i += 1) {
+                System.arraycopy(results.get(i).get(), 0, all,
+                                 i * messages, messages);
+            }
+        } catch (ExecutionException excp) {
+            throw error("client failed: %s", excp.getCause());
+        } catch (InterruptedException excp) {
+            throw error("interrupted");
+        } finally {
+            threads.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(all);
+        System.out.printf("%d clients x %d messages in %.2f s: "
+                          + "%.0f messages/s%n", clients, messages, seconds,
+                          all.length / seconds);
+        if (all.length > 0) {
+            System.out.printf("latency p50 %.1f us, p99 %.1f us, "
+                              + "max %.1f us%n",
+                              percentile(all, 0.50) / 1e3,
+                              percentile(all, 0.99) / 1e3,
+                              all[all.length - 1] / 1e3);
+        }
+    }
+
+    /** Return the value at fraction P of SORTED. */
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1,
+                               (int) (p * sorted.length))];
+    }
+
+    /** Most characters sent in one frame: each takes at most three bytes
+     *  in UTF-8. */
+    private static final int CHUNK = Server.MAX_PAYLOAD / 3;
+
+    /** Message converted by the load test. */
+    private static final String LOAD_MESSAGE = "HELLO WORLD";
+
+    /** Connection to the server. */
+    private final SocketChannel _channel;
+
+    /** Buffers for frames received and sent. */
+    private final ByteBuffer _in =
+        ByteBuffer.allocate(Server.HEADER + Server.MAX_REPLY),
+        _out = ByteBuffer.allocate(Server.HEADER + Server.MAX_PAYLOAD);
+}
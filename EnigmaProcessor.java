@@ -0,0 +1,275 @@
+package enigma;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static enigma.EnigmaException.*;
+
+/** A reactive stage that converts a stream of messages with a Machine.
+ *  The items received are message chunks and settings events, in the
+ *  order they apply to the machine; the items published are the
+ *  converted chunks, blanks removed as by Machine.convert(String).
+ *  The machine is advanced from one chunk to the next, so each stream
+ *  needs a processor (and a machine) of its own.
+ *
+ *  No thread is ever blocked.  Chunks are requested from upstream only
+ *  while my subscriber has outstanding demand or while fewer than a
+ *  batch of characters are waiting, so at most about a batch is held.
+ *  Chunks that accumulate while there is no demand are published
+ *  together as one item when demand arrives, so small messages are
+ *  batched.  An item that cannot be applied (a message that cannot be
+ *  converted, or settings naming unknown rotors) cancels the upstream
+ *  subscription, and the error is signalled once the chunks converted
+ *  before it have been published.
+ *  @author Joseph Heupler
+ */
+final class EnigmaProcessor implements Flow.Processor<EnigmaProcessor.Item,
+                                                      String> {
+
+    /** An item of the input: a message chunk or new settings. */
+    static final class Item {
+
+        /** Return an item whose message is TEXT. */
+        static Item message(String text) {
+            return new Item(text, null, null, null);
+        }
+
+        /** Return an item that inserts the rotors named ROTORS, sets them
+         *  to SETTING (see Machine.setRotors), and makes PLUGBOARD, which
+         *  may be null, the plugboard. */
+        static Item settings(String[] rotors, String setting,
+                             Permutation plugboard) {
+            return new Item(null, rotors.clone(), setting, plugboard);
+        }
+
+        /** An item with the given fields, as described below. */
+        private Item(String text, String[] rotors, String setting,
+                     Permutation plugboard) {
+            _text = text;
+            _rotors = rotors;
+            _setting = setting;
+            _plugboard = plugboard;
+        }
+
+        /** The message, or null for settings. */
+        private final String _text;
+        /** The rotors inserted by settings. */
+        private final String[] _rotors;
+        /** The positions of the rotors set by settings. */
+        private final String _setting;
+        /** The plugboard installed by settings. */
+        private final Permutation _plugboard;
+    }
+
+    /** A processor converting with MACHINE, which it alone may use. */
+    EnigmaProcessor(Machine machine) {
+        _machine = machine;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+        if (_downstream != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(
+                new IllegalStateException("already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelUpstream();
+                    fail(new IllegalArgumentException(
+                             "non-positive request"));
+                } else {
+                    _demand.accumulateAndGet(n, EnigmaProcessor::addCapped);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                _cancelled = true;
+                cancelUpstream();
+                drain();
+            }
+        });
+        _downstream = subscriber;
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (_upstream != null || _done) {
+            subscription.cancel();
+            return;
+        }
+        _upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(Item item) {
+        if (_done) {
+            return;
+        }
+        _requested.decrementAndGet();
+        try {
+            if (item._text == null) {
+                _machine.insertRotors(item._rotors);
+                if (_machine.getMachineRotors().length
+                    != item._rotors.length) {
+                    throw error("unknown rotor among %s",
+                                String.join(" ", item._rotors));
+                }
+                _machine.setRotors(item._setting);
+                _machine.setPlugboard(item._plugboard);
+            } else {
+                String converted = _machine.convert(item._text);
+                if (!converted.isEmpty()) {
+                    _queued.addAndGet(converted.length());
+                    _converted.add(converted);
+                }
+            }
+        } catch (RuntimeException excp) {
+            cancelUpstream();
+            fail(excp);
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        _done = true;
+        drain();
+    }
+
+    /** Record FAILURE as the end of my input, if it has not ended. */
+    private void fail(Throwable failure) {
+        if (!_done) {
+            _failure = failure;
+            _done = true;
+        }
+    }
+
+    /** Cancel my upstream subscription, if any. */
+    private void cancelUpstream() {
+        Flow.Subscription upstream = _upstream;
+        if (upstream != null) {
+            upstream.cancel();
+        }
+    }
+
+    /** Publish what my subscriber has asked for, signal the end of the
+     *  stream once everything is published, and request more input if
+     *  appropriate.  Only one thread drains at a time; a call made while
+     *  another thread is draining makes that thread go round again. */
+    private void drain() {
+        if (_wip.getAndIncrement() != 0) {
+            return;
+        }
+        for (int missed = 1; missed != 0; missed = _wip.addAndGet(-missed)) {
+            Flow.Subscriber<? super String> downstream = _downstream;
+            if (downstream == null || _terminated) {
+                continue;
+            }
+            if (_cancelled) {
+                _converted.clear();
+                _terminated = true;
+                continue;
+            }
+            while (_demand.get() > 0 && !_converted.isEmpty()) {
+                StringBuilder batch = new StringBuilder();
+                while (batch.length() < BATCH_CHARS
+                       && !_converted.isEmpty()) {
+                    batch.append(_converted.poll());
+                }
+                _queued.addAndGet(-batch.length());
+                _demand.decrementAndGet();
+                downstream.onNext(batch.toString());
+            }
+            if (_done && _converted.isEmpty()) {
+                _terminated = true;
+                if (_failure == null) {
+                    downstream.onComplete();
+                } else {
+                    downstream.onError(_failure);
+                }
+            } else if (!_done && _upstream != null
+                       && _requested.get() <= PREFETCH / 2
+                       && (_demand.get() > 0
+                           || _queued.get() < BATCH_CHARS)) {
+                long n = PREFETCH - _requested.get();
+                _requested.addAndGet(n);
+                _upstream.request(n);
+            }
+        }
+    }
+
+    /** Return A + B, or Long.MAX_VALUE if that overflows. */
+    private static long addCapped(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /** Number of characters beyond which converted chunks are not
+     *  batched together, and below which more input is requested
+     *  without demand. */
+    private static final int BATCH_CHARS = 1 << 16;
+
+    /** Most items requested from upstream at once. */
+    private static final long PREFETCH = 64;
+
+    /** The machine converting my stream. */
+    private final Machine _machine;
+
+    /** Converted chunks not yet published, in order. */
+    private final Queue<String> _converted = new ConcurrentLinkedQueue<>();
+
+    /** Total length of _converted. */
+    private final AtomicLong _queued = new AtomicLong();
+
+    /** Items requested by my subscriber and not yet published. */
+    private final AtomicLong _demand = new AtomicLong();
+
+    /** Items requested from upstream and not yet received. */
+    private final AtomicLong _requested = new AtomicLong();
+
+    /** Number of calls to drain not yet accounted for. */
+    private final AtomicInteger _wip = new AtomicInteger();
+
+    /** My source, or null before it subscribes. */
+    private volatile Flow.Subscription _upstream;
+
+    /** My subscriber, or null. */
+    private volatile Flow.Subscriber<? super String> _downstream;
+
+    /** True once my input has ended, normally or with _failure. */
+    private volatile boolean _done;
+
+    /** Failure ending my input, or null. */
+    private volatile Throwable _failure;
+
+    /** True once my subscriber has cancelled. */
+    private volatile boolean _cancelled;
+
+    /** True once nothing more will be sent to my subscriber. */
+    private boolean _terminated;
+}
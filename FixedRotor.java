@@ -20,6 +20,11 @@ class FixedRotor extends Rotor {
         throw new EnigmaException("Advancing isn't possible with a fixed rotor");
     }
 
+    @Override
+    Rotor copy() {
+        return copyState(new FixedRotor(name(), permutation()));
+    }
+
     @Override
     boolean rotates() {
         return false;
@@ -0,0 +1,164 @@
+package enigma;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** The complete sequence of composite permutations that a machine goes
+ *  through from one starting configuration.  For a fixed rotor order,
+ *  plugboard and starting position the rotor positions eventually
+ *  repeat (after 16,900 keystrokes for three moving rotors of 26
+ *  letters), so the whole sequence is a short prefix followed by a
+ *  cycle, and encrypting the K-th character is one table lookup.
+ *  Rows are numbered from 0; row K is the permutation applied to the
+ *  K-th character after the starting configuration.  The table is kept
+ *  in a direct or mapped buffer, off the Java heap.
+ *  @author Joseph Heupler
+ */
+final class Keystream {
+
+    /** A keystream whose rows are in TABLE (SIZE entries per row), with
+     *  PREFIX rows before the cycle and a cycle of PERIOD rows.  The
+     *  entries are copied off the heap. */
+    private Keystream(int size, int prefix, int period, int[] table) {
+        this(size, prefix, prefix + period,
+             ByteBuffer.allocateDirect(table.length * width(size)));
+        for (int k = 0; k < table.length; k += 1) {
+            if (_wide) {
+                _table.putChar(2 * k, (char) table[k]);
+            } else {
+                _table.put(k, (byte) table[k]);
+            }
+        }
+    }
+
+    /** A keystream for an alphabet of SIZE characters whose ROWS rows,
+     *  of which the first PREFIX precede the cycle, are stored in TABLE
+     *  as single bytes if SIZE <= 256 and as chars otherwise.  TABLE may
+     *  be shared (for example, mapped from a TableStore file) but must
+     *  not be modified. */
+    Keystream(int size, int prefix, int rows, ByteBuffer table) {
+        _size = size;
+        _prefix = prefix;
+        _rows = rows;
+        _wide = width(size) == 2;
+        _table = table.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Return the number of bytes per entry of a table for an alphabet of
+     *  SIZE characters. */
+    static int width(int size) {
+        return size <= 256 ? 1 : 2;
+    }
+
+    /** Return the keystream of ENGINE from its current positions, or null
+     *  if it would need more than MAXENTRIES table entries.  ENGINE is not
+     *  changed. */
+    static Keystream build(Engine engine, int maxEntries) {
+        int n = engine.size();
+        int slots = engine.numSlots();
+        if ((slots - 1) * (32 - Integer.numberOfLeadingZeros(n)) > 62) {
+            return null;
+        }
+        int maxRows = maxEntries / n;
+        Engine e = new Engine(engine);
+        HashMap<Long, Integer> seen = new HashMap<>();
+        int[] table = new int[Math.min(maxRows, INITIAL_ROWS) * n];
+        for (int row = 0; row < maxRows; row += 1) {
+            e.step();
+            long state = 0;
+            for (int i = 1; i < slots; i += 1) {
+                state = state * n + e.setting(i);
+            }
+            Integer first = seen.putIfAbsent(state, row);
+            if (first != null) {
+                return new Keystream(n, first, row - first,
+                                     Arrays.copyOf(table, row * n));
+            }
+            if (table.length < (row + 1) * n) {
+                table = Arrays.copyOf(table,
+                                      Math.min(maxRows, 2 * row) * n);
+            }
+            for (int c = 0; c < n; c += 1) {
+                table[row * n + c] = e.map(c);
+            }
+        }
+        return null;
+    }
+
+    /** Return the conversion of C by row ROW. */
+    int map(int row, int c) {
+        if (_wide) {
+            return _table.getChar(2 * (row * _size + c));
+        }
+        return _table.get(row * _size + c) & 0xFF;
+    }
+
+    /** Return the row that follows ROW. */
+    int next(int row) {
+        row += 1;
+        return row == _rows ? _prefix : row;
+    }
+
+    /** Return the row N rows after ROW. */
+    int skip(int row, long n) {
+        if (n < _rows - row) {
+            return (int) (row + n);
+        }
+        return _prefix + (int) ((n - (_rows - row)) % period());
+    }
+
+    /** Return the row used for the K-th character. */
+    int row(long k) {
+        return k < _rows ? (int) k : (int) (_prefix + (k - _prefix)
+                                            % (_rows - _prefix));
+    }
+
+    /** Return the number of keystrokes after which my rows repeat. */
+    int period() {
+        return _rows - _prefix;
+    }
+
+    /** Return the number of rows before my cycle begins. */
+    int prefix() {
+        return _prefix;
+    }
+
+    /** Return the number of rows before my cycle begins plus the number
+     *  in it. */
+    int rows() {
+        return _rows;
+    }
+
+    /** Return the size of my alphabet. */
+    int size() {
+        return _size;
+    }
+
+    /** Return a read-only view of my table, as described for the
+     *  constructor. */
+    ByteBuffer table() {
+        return _table.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Return the number of bytes my table occupies. */
+    long footprint() {
+        return _table.capacity();
+    }
+
+    /** Rows allocated before the period is known. */
+    private static final int INITIAL_ROWS = 1024;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** Number of rows before the cycle, and in total. */
+    private final int _prefix, _rows;
+
+    /** True iff my entries are chars rather than bytes. */
+    private final boolean _wide;
+
+    /** The rows, outside the Java heap, in little-endian order. */
+    private final ByteBuffer _table;
+}
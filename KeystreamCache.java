@@ -0,0 +1,94 @@
+package enigma;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A cache of Keystreams keyed by the settings lines that produced them,
+ *  holding at most a fixed number of bytes of tables and evicting the
+ *  least recently used keystreams first.  Keystreams found in a
+ *  TableStore are used in place and take no room in the cache.  A cache
+ *  may be shared by threads.
+ *  @author Joseph Heupler
+ */
+class KeystreamCache {
+
+    /** A cache holding at most MAXBYTES bytes of tables, none of which
+     *  may exceed MAXENTRIES entries. */
+    KeystreamCache(long maxBytes, int maxEntries) {
+        _maxBytes = maxBytes;
+        _maxEntries = maxEntries;
+    }
+
+    /** Return the keystream of MACHINE as configured by SETTINGS,
+     *  building it from MACHINE's current configuration if it is not
+     *  cached.  Returns null if the keystream is too long to tabulate.
+     *  The keystream is built outside the lock, so that threads needing
+     *  other keystreams are not held up; two threads that miss on the
+     *  same SETTINGS at once both build it, and the first to finish
+     *  wins. */
+    Keystream get(String settings, Machine machine) {
+        synchronized (this) {
+            if (_entries.containsKey(settings)) {
+                return _entries.get(settings);
+            } else if (_store != null && _store.get(settings) != null) {
+                return _store.get(settings);
+            }
+        }
+        Keystream built = machine.keystream(_maxEntries);
+        synchronized (this) {
+            if (_entries.containsKey(settings)) {
+                return _entries.get(settings);
+            }
+            _entries.put(settings, built);
+            _bytes += built == null ? 0 : built.footprint();
+            Iterator<Keystream> eldest = _entries.values().iterator();
+            while ((_bytes > _maxBytes || _entries.size() > MAX_SETTINGS)
+                   && eldest.hasNext()) {
+                Keystream victim = eldest.next();
+                if (victim != built) {
+                    _bytes -= victim == null ? 0 : victim.footprint();
+                    eldest.remove();
+                }
+            }
+            return built;
+        }
+    }
+
+    /** Consult STORE for keystreams before building them. */
+    synchronized void setStore(TableStore store) {
+        _store = store;
+    }
+
+    /** Return the keystreams I have built that are still cached, by
+     *  settings line. */
+    synchronized Map<String, Keystream> built() {
+        Map<String, Keystream> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Keystream> entry : _entries.entrySet()) {
+            if (entry.getValue() != null) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /** Maximum number of settings lines remembered. */
+    private static final int MAX_SETTINGS = 4096;
+
+    /** Maximum total footprint of the cached tables. */
+    private final long _maxBytes;
+
+    /** Maximum number of entries of one table. */
+    private final int _maxEntries;
+
+    /** Total footprint of the cached tables. */
+    private long _bytes;
+
+    /** Prebuilt keystreams, or null. */
+    private TableStore _store;
+
+    /** The cached keystreams (null for settings whose keystream is too
+     *  long), least recently used first. */
+    private final Map<String, Keystream> _entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+}
@@ -1,8 +1,15 @@
 package enigma;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -20,9 +27,13 @@ class Machine {
     Machine(Alphabet alpha, int numRotors, int pawls,
             Collection<Rotor> allRotors) {
         _alphabet = alpha;
+        _dropBlanks = !alpha.contains(' ');
         // FIXME
         _numRotors = numRotors;
         _allRotors = allRotors;
+        for (Rotor r : allRotors) {
+            _rotorIndex.putIfAbsent(r.name(), r);
+        }
         _pawls = pawls;
         _machineRotors = new Rotor[0];
         if (_numRotors <= 1) {
@@ -39,6 +50,21 @@ class Machine {
         }
     }
 
+    /** Return a new machine with my alphabet, slots and pawls, whose
+     *  available rotors are copies of mine (see Rotor.copy()), and with
+     *  no rotors inserted.  It shares no mutable state with me, so it may
+     *  be used by another thread. */
+    Machine copy() {
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        for (Rotor r : _allRotors) {
+            rotors.add(r.copy());
+        }
+        Machine result = new Machine(_alphabet, _numRotors, _pawls, rotors);
+        result._specialized = _specialized;
+        result._parallelThreshold = _parallelThreshold;
+        return result;
+    }
+
     /** Return the number of rotor slots I have. */
     int numRotors() {
         // FIXME
@@ -55,7 +81,9 @@ class Machine {
      *  #(numRotors()-1) is the fast Rotor.  Modifying this Rotor has
      *  undefined results. */
     Rotor getRotor(int k) {
-        // FIXME
+        if (engine() != null) {
+            _engine.store(_machineRotors);
+        }
         return _machineRotors[k];
     }
 
@@ -68,32 +96,38 @@ class Machine {
      *  Initially, all rotors are set at their 0 setting. */
     void insertRotors(String[] rotorsInput) {
         // FIXME
+        placeRotors(rotorsInput);
+        rebuild();
+        markStart();
+    }
+
+    /** Put the rotors named ROTORSINPUT in my slots, as insertRotors
+     *  does, but without building my engine. */
+    private void placeRotors(String[] rotorsInput) {
         if (rotorsInput.length > numRotors()) {
             throw new EnigmaException("Too low numRotors inputted, "
                     + "need " + rotorsInput.length + " numPawls");
         }
 
+        discardEngine();
         Rotor[] tmpRotors = new Rotor[numRotors() + 1];
         int tmpRotorsI = 0;
         for (int i = 0; i < rotorsInput.length; i += 1) {
-            for (Rotor r : _allRotors) {
-                if (rotorsInput[i].equals(r.name())) {
-                    tmpRotors[tmpRotorsI] = r;
-                    tmpRotorsI += 1;
-                    break;
-                }
+            Rotor r = _rotorIndex.get(rotorsInput[i]);
+            if (r != null) {
+                tmpRotors[tmpRotorsI] = r;
+                tmpRotorsI += 1;
             }
         }
 
         _machineRotors = new Rotor[tmpRotorsI];
         System.arraycopy(tmpRotors, 0, _machineRotors, 0, tmpRotorsI);
-        for (int i = 0; i < _machineRotors.length; i += 1) {
-            for (int j = 0; j < _machineRotors.length; j += 1) {
-                if (i != j && _machineRotors[i].name().equals(_machineRotors[j].name())) {
-                    throw new EnigmaException(
-                            "Duplicate Rotors not allowed, "
-                                    + "duplicate found: " + _machineRotors[i].name());
-                }
+        HashSet<String> names = new HashSet<>();
+        for (Rotor r : _machineRotors) {
+            if (!names.add(r.name())) {
+                throw new EnigmaException(
+                        "Duplicate Rotors not allowed, "
+                                + "duplicate found: " + r.name());
             }
         }
 
@@ -102,6 +136,21 @@ class Machine {
                     + "(" + _machineRotors[0].toString() + ") "
                     + "is not reflector but it should be a reflector.");
         }
+        for (Rotor r : _machineRotors) {
+            r.precompute();
+        }
+    }
+
+    /** Insert the rotors named ROTORS, set them according to SETTING and
+     *  make PLUGBOARD (null for none) my plugboard, just as insertRotors,
+     *  setRotors and setPlugboard would in turn, but building my engine
+     *  only once. */
+    void configure(String[] rotors, String setting, Permutation plugboard) {
+        placeRotors(rotors);
+        placeSettings(setting);
+        _plugboard = plugboard;
+        rebuild();
+        markStart();
     }
 
     /** Set my rotors according to SETTING, which must be a string of
@@ -109,6 +158,15 @@ class Machine {
      *  to the leftmost rotor setting (not counting the reflector).  */
     void setRotors(String setting) {
         // FIXME
+        placeSettings(setting);
+        discardEngine();
+        rebuild();
+        markStart();
+    }
+
+    /** Set my rotors according to SETTING, as setRotors does, but without
+     *  rebuilding my engine. */
+    private void placeSettings(String setting) {
         if (numRotors() == setting.length()+1) {
             int rotorIndex = 0;
             while (rotorIndex < _machineRotors.length-1) {
@@ -121,6 +179,65 @@ class Machine {
         }
     }
 
+    /** Record my current rotor settings as those of position 0. */
+    private void markStart() {
+        _start = _engine.positions().clone();
+        _position = 0;
+    }
+
+    /** Return the number of characters I have converted (or skipped)
+     *  since my rotors were last inserted or set. */
+    long position() {
+        return _position;
+    }
+
+    /** Advance my rotors by N keystrokes without converting anything,
+     *  leaving them as N calls of convert(int) would. */
+    void skip(long n) {
+        Engine engine = engine();
+        if (engine == null) {
+            throw error("no rotors have been inserted");
+        } else if (n < 0) {
+            throw error("cannot skip %d keystrokes", n);
+        }
+        engine.skip(n);
+        if (_converter != null) {
+            _converter.load(engine.positions());
+        }
+        if (_keystream != null) {
+            _keystreamRow = _keystream.skip(_keystreamRow, n);
+        }
+        _position += n;
+    }
+
+    /** Set my rotors to where they are after POSITION keystrokes from
+     *  the settings they were last inserted or set with. */
+    void seek(long position) {
+        if (position < 0) {
+            throw error("cannot seek to %d", position);
+        } else if (position < _position) {
+            Engine engine = engine();
+            System.arraycopy(_start, 0, engine.positions(), 0,
+                             _start.length);
+            engine.positionsChanged();
+            if (_converter != null) {
+                _converter.load(engine.positions());
+            }
+            if (_keystream != null && position >= _keystreamOrigin) {
+                _keystreamRow = 0;
+                _position = _keystreamOrigin;
+                engine.skip(_keystreamOrigin);
+                if (_converter != null) {
+                    _converter.load(engine.positions());
+                }
+            } else {
+                _keystream = null;
+                _position = 0;
+            }
+        }
+        skip(position - _position);
+    }
+
     /** Return the current plugboard's permutation. */
     Permutation plugboard() {
         // FIXME
@@ -129,42 +246,145 @@ class Machine {
 
     /** Set the plugboard to PLUGBOARD. */
     void setPlugboard(Permutation plugboard) {
-        // FIXME
         _plugboard = plugboard;
+        rebuild();
     }
 
-    void configurePlugboard(String settings) {
-        Pattern cycles_pattern = Pattern.compile("(\\(\\w+\\))+"); // DEBUG??
+    /** Rebuild my engine from my rotors and plugboard, keeping the
+     *  current rotor positions. */
+    private void rebuild() {
+        if (engine() != null) {
+            _engine.store(_machineRotors);
+        }
+        discardEngine();
+        if (_machineRotors.length > 0) {
+            _engine = new Engine(_machineRotors, _plugboard);
+            if (_specialized) {
+                _converter = EngineCompiler.compile(_engine, _alphabet);
+            }
+        }
+    }
 
-        // get cycles from settings string
-        // "(CA) (CB)" -> Permutation Constructor (as cycles argument) (which is in Permutation.java)
-        Matcher m = cycles_pattern.matcher(settings);
-        String plugboardCycles = null;
-        while (m.find()) {
-            plugboardCycles += m.group(0); // I need this : "(ASDASD) (ASDASD)"
+    /** Forget my engine (and converter and keystream) without saving
+     *  its positions. */
+    private void discardEngine() {
+        _engine = null;
+        _converter = null;
+        _keystream = null;
+        _keystreamLag = 0;
+    }
+
+    /** Return my engine, with its positions brought up to date with my
+     *  converter or keystream if I have one, or null if I have no rotors
+     *  yet. */
+    private Engine engine() {
+        if (_converter != null) {
+            _converter.store(_engine.positions());
+            _engine.positionsChanged();
+        }
+        if (_keystreamLag > 0) {
+            _engine.skip(_keystreamLag);
+            _keystreamLag = 0;
+            if (_converter != null) {
+                _converter.load(_engine.positions());
+            }
         }
+        return _engine;
+    }
+
+    /** Return the keystream of my current configuration, or null if it
+     *  needs more than MAXENTRIES table entries or I have no rotors. */
+    Keystream keystream(int maxEntries) {
+        Engine engine = engine();
+        return engine == null ? null : Keystream.build(engine, maxEntries);
+    }
 
+    /** Convert using KEYSTREAM, which must be keystream() of my current
+     *  configuration, until I am next reconfigured.  A null KEYSTREAM
+     *  resumes normal conversion. */
+    void useKeystream(Keystream keystream) {
+        engine();
+        _keystream = keystream;
+        _keystreamRow = 0;
+        _keystreamOrigin = _position;
+    }
 
-        // only add plugboard if there are cycles to add
-        if (plugboardCycles != null && plugboardCycles != "") {
-            Alphabet alphabet = alphabet();
+    /** Convert with a class generated for each rotor configuration (see
+     *  EngineCompiler) iff SPECIALIZED, falling back to my Engine when
+     *  one cannot be generated. */
+    void setSpecialized(boolean specialized) {
+        _specialized = specialized;
+        rebuild();
+    }
 
-            Permutation configuredPlugboard = new Permutation(plugboardCycles, alphabet);// FEED CYCLES INTO HERE
+    /** Convert messages of more than THRESHOLD characters in parallel,
+     *  in chunks of at most THRESHOLD characters (see ParallelConverter).
+     *  A THRESHOLD of 0 converts every message sequentially. */
+    void setParallelThreshold(int threshold) {
+        if (threshold < 0) {
+            throw error("negative parallel threshold: %d", threshold);
+        }
+        _parallelThreshold = threshold;
+    }
 
+    void configurePlugboard(String settings) {
+        Permutation configuredPlugboard = parsePlugboard(settings);
+
+        // settings without cycles leave no plugboard
+        if (configuredPlugboard != null) {
             setPlugboard(configuredPlugboard);
+        } else if (_plugboard != null) {
+            setPlugboard(null);
+        }
+    }
+
+    /** Return the plugboard given by the cycles in the settings line
+     *  SETTINGS, or null if it has none. */
+    Permutation parsePlugboard(String settings) {
+        // get cycles from settings string
+        // "(CA) (CB)" -> Permutation Constructor (as cycles argument) (which is in Permutation.java)
+        Matcher m = CYCLES_PATTERN.matcher(settings);
+        StringBuilder plugboardCycles = new StringBuilder();
+        while (m.find()) {
+            plugboardCycles.append(m.group(0)); // I need this : "(ASDASD) (ASDASD)"
+        }
+        if (plugboardCycles.length() == 0) {
+            return null;
         }
+        return new Permutation(plugboardCycles.toString(), alphabet());
     }
 
     /** Returns the result of converting the input character C (as an
      *  index in the range 0..alphabet size - 1), after first advancing
      *  the machine. */
     int convert(int c) {
+        _position += 1;
+        if (Main.verbose()) {
+            useKeystream(null);
+            return convertVerbose(c);
+        } else if (_keystream != null) {
+            c = _keystream.map(_keystreamRow, c);
+            _keystreamRow = _keystream.next(_keystreamRow);
+            _keystreamLag += 1;
+            return c;
+        } else if (_converter != null) {
+            return _converter.convert(c);
+        } else if (_engine == null) {
+            throw error("no rotors have been inserted");
+        }
+        return _engine.convert(c);
+    }
+
+    /** Returns the result of converting the input character C as for
+     *  convert(int), tracing each stage on the standard error. */
+    private int convertVerbose(int c) {
+        engine().store(_machineRotors);
         advanceRotors();
         if (Main.verbose()) {
             System.err.printf("[");
             for (int r = 1; r < numRotors(); r += 1) {
                 System.err.printf("%c",
-                        alphabet().toChar(getRotor(r).setting()));
+                        alphabet().toChar(_machineRotors[r].setting()));
             }
             System.err.printf("] %c -> ", alphabet().toChar(c));
         }
@@ -183,6 +403,10 @@ class Machine {
         if (Main.verbose()) {
             System.err.printf("%c%n", alphabet().toChar(c));
         }
+        _engine.load(_machineRotors);
+        if (_converter != null) {
+            _converter.load(_engine.positions());
+        }
         return c;
     }
 
@@ -238,32 +462,187 @@ class Machine {
     /** Returns the encoding/decoding of MSG, updating the state of
      *  the rotors accordingly. */
     String convert(String msg) {
-        // FIXME
-        String msgNoSpace = msg.replaceAll(" ", "");
-        char[] msgArr = msgNoSpace.toCharArray();
+        char[] msgArr = msg.toCharArray();
+        return new String(msgArr, 0, convert(msgArr, msgArr.length));
+    }
 
-        // CHECK: all chars in msg are in alphabet
-        for (char ch : msgArr) {
-            if (!_alphabet.contains(ch)) {
+    /** Convert the first LEN characters of MSG in place as for
+     *  convert(String), moving the results to the start of MSG, and
+     *  return their number. */
+    int convert(char[] msg, int len) {
+        int k = 0;
+        for (int i = 0; i < len; i += 1) {
+            char ch = msg[i];
+            if (ch == ' ' && _dropBlanks) {
+                continue;
+            } else if (!_alphabet.contains(ch)) {
                 throw EnigmaException.error(
                         "Char not in alphabet.");
             }
+            msg[k] = ch;
+            k += 1;
         }
+        convertValid(msg, k);
+        return k;
+    }
 
-        StringBuilder out = new StringBuilder();
-        int i = 0;
-        for (char ch : msgArr) {
-            i = convert(_alphabet.toInt(ch));
-            out.append(_alphabet.toChar(i));
+    /** Convert the first LEN characters of BUF, which must all be in my
+     *  alphabet, in place. */
+    private void convertValid(char[] buf, int len) {
+        if (_parallelThreshold > 0 && len > _parallelThreshold
+            && _engine != null && !Main.verbose()) {
+            ParallelConverter.convert(engine(), _alphabet, _specialized,
+                                      buf, 0, len, _parallelThreshold);
+            skip(len);
+        } else if (_converter != null && _keystream == null
+                   && !Main.verbose()) {
+            _converter.convert(buf, 0, len);
+            _position += len;
+        } else {
+            for (int i = 0; i < len; i += 1) {
+                buf[i] = _alphabet.toChar(convert(_alphabet.toInt(buf[i])));
+            }
         }
+    }
 
-        String result = out.toString();
-        return result;
+    /** Convert all the characters of INPUT, ignoring whitespace, and write
+     *  the results to OUTPUT in groups of five separated by blanks, as
+     *  Main prints message lines.  Returns the number of characters
+     *  converted.  INPUT is read in chunks of fixed size, so the message
+     *  may be of any length.  Neither INPUT nor OUTPUT is closed, and no
+     *  line terminator is written. */
+    long convert(Reader input, Writer output) throws IOException {
+        char[] buf = new char[STREAM_CHUNK];
+        char[] grouped = new char[STREAM_CHUNK + STREAM_CHUNK / GROUP + 1];
+        long read = 0, converted = 0;
+        for (int n = input.read(buf); n != -1; n = input.read(buf)) {
+            int len = 0;
+            for (int i = 0; i < n; i += 1) {
+                char ch = buf[i];
+                if (Character.isWhitespace(ch) && !_alphabet.contains(ch)) {
+                    continue;
+                } else if (!_alphabet.contains(ch)) {
+                    throw error("character '%c' at position %d is not in "
+                                + "the alphabet", ch, read + i);
+                }
+                buf[len] = ch;
+                len += 1;
+            }
+            read += n;
+            convertValid(buf, len);
+            int g = 0;
+            for (int i = 0; i < len; i += 1) {
+                if (converted > 0 && converted % GROUP == 0) {
+                    grouped[g] = ' ';
+                    g += 1;
+                }
+                grouped[g] = buf[i];
+                g += 1;
+                converted += 1;
+            }
+            output.write(grouped, 0, g);
+        }
+        return converted;
     }
 
+    /** Convert the LEN characters of IN starting at OFF into OUT starting
+     *  at OUTOFF, skipping blanks, and return the number of characters
+     *  written.  OUT may be IN, provided OUTOFF <= OFF.  Nothing is
+     *  allocated.  If a character that is not in my alphabet is found,
+     *  the characters before it have been converted when the
+     *  EnigmaException reporting its position is thrown. */
+    int convert(char[] in, int off, int len, char[] out, int outOff) {
+        int o = outOff;
+        for (int i = off; i < off + len; i += 1) {
+            char ch = in[i];
+            if (ch == ' ' && _dropBlanks) {
+                continue;
+            }
+            int k = _alphabet.indexOf(ch);
+            if (k == -1) {
+                throw error("character '%c' at position %d is not in the "
+                            + "alphabet", ch, i);
+            }
+            out[o] = _alphabet.toChar(convert(k));
+            o += 1;
+        }
+        return o - outOff;
+    }
+
+    /** Convert the LEN bytes of IN starting at OFF, each a character in
+     *  the ISO 8859-1 (and so the ASCII) encoding, into OUT starting at
+     *  OUTOFF, as for convert(char[], int, int, char[], int).  My
+     *  alphabet's characters must all have one-byte encodings. */
+    int convert(byte[] in, int off, int len, byte[] out, int outOff) {
+        int o = outOff;
+        for (int i = off; i < off + len; i += 1) {
+            char ch = (char) (in[i] & 0xFF);
+            if (ch == ' ' && _dropBlanks) {
+                continue;
+            }
+            int k = _alphabet.indexOf(ch);
+            if (k == -1) {
+                throw error("character '%c' at position %d is not in the "
+                            + "alphabet", ch, i);
+            }
+            char result = _alphabet.toChar(convert(k));
+            if (result > 0xFF) {
+                throw error("character '%c' cannot be written as a byte",
+                            result);
+            }
+            out[o] = (byte) result;
+            o += 1;
+        }
+        return o - outOff;
+    }
+
+    /** Convert the bytes remaining in SRC into DST, as many as fit, as
+     *  for convert(byte[], int, int, byte[], int), and return the number
+     *  written.  The buffers' positions are advanced past the bytes
+     *  converted and written.  If my alphabet is that of the byte values
+     *  (see Alphabet.isBytes()), each byte is simply its own index. */
+    int convert(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        if (_alphabet.isBytes()) {
+            while (src.hasRemaining() && dst.hasRemaining()) {
+                dst.put((byte) convert(src.get() & 0xFF));
+            }
+            return dst.position() - start;
+        }
+        while (src.hasRemaining() && dst.hasRemaining()) {
+            char ch = (char) (src.get() & 0xFF);
+            if (ch == ' ' && _dropBlanks) {
+                continue;
+            }
+            int k = _alphabet.indexOf(ch);
+            if (k == -1) {
+                throw error("character '%c' at position %d is not in the "
+                            + "alphabet", ch, src.position() - 1);
+            }
+            char result = _alphabet.toChar(convert(k));
+            if (result > 0xFF) {
+                throw error("character '%c' cannot be written as a byte",
+                            result);
+            }
+            dst.put((byte) result);
+        }
+        return dst.position() - start;
+    }
+
+    /** Number of characters read at a time by convert(Reader, Writer). */
+    private static final int STREAM_CHUNK = 1 << 16;
+
+    /** Number of characters in each group written by convert(Reader,
+     *  Writer). */
+    private static final int GROUP = 5;
+
     /** Common alphabet of my rotors. */
     private final Alphabet _alphabet;
 
+    /** True iff blanks in messages are ignored, which they are unless
+     *  they are in my alphabet. */
+    private final boolean _dropBlanks;
+
     // FIXME: ADDITIONAL FIELDS HERE, IF NEEDED.
     Rotor[] getMachineRotors() {
         return _machineRotors;
@@ -272,7 +651,49 @@ class Machine {
     private int _numRotors;
     private int _pawls;
     private Collection<Rotor> _allRotors;
+
+    /** The first of _allRotors with each name. */
+    private final HashMap<String, Rotor> _rotorIndex = new HashMap<>();
+
+    /** Plugboard cycles in a settings line. */
+    private static final Pattern CYCLES_PATTERN =
+        Pattern.compile("(\\(\\w+\\))+");
     private Rotor[] _machineRotors;
     private Iterator<Rotor> _iterRotors;
 
+    /** Flattened copy of my rotors and plugboard used by convert(int);
+     *  null until rotors have been inserted. */
+    private Engine _engine;
+
+    /** True iff I should generate a Converter for each configuration. */
+    private boolean _specialized;
+
+    /** Messages longer than this are converted in parallel, unless it
+     *  is 0. */
+    private int _parallelThreshold;
+
+    /** Converter generated from _engine, which it supersedes while it
+     *  is non-null. */
+    private Converter _converter;
+
+    /** Keystream of my current configuration, which supersedes _engine
+     *  and _converter while it is non-null. */
+    private Keystream _keystream;
+
+    /** Row of _keystream for the next character. */
+    private int _keystreamRow;
+
+    /** Value of _position when _keystream was put in use. */
+    private long _keystreamOrigin;
+
+    /** Settings of my rotors at position 0, indexed by slot. */
+    private int[] _start;
+
+    /** Number of keystrokes since my rotors were last inserted or set. */
+    private long _position;
+
+    /** Number of characters converted by _keystream since _engine's
+     *  positions were last brought up to date. */
+    private long _keystreamLag;
+
 }
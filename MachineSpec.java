@@ -0,0 +1,290 @@
+package enigma;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static enigma.EnigmaException.*;
+
+/** The compiled, immutable form of a machine configuration: its alphabet,
+ *  number of slots and pawls, and the wiring, notches and kind of each
+ *  available rotor.  Each rotor's tables for every setting are built the
+ *  first time a session uses it and shared by all later sessions, so a
+ *  large catalogue costs only the tables of the rotors in use.  Nothing
+ *  observable in a spec changes once it is made, so one spec may be
+ *  shared by any number of threads.  The state of a machine in use
+ *  (which rotors are in its slots, their positions, and its plugboard)
+ *  is instead held by a Cursor, a few small arrays, so that a single
+ *  spec can serve many concurrent sessions, unlike Machine, whose rotors
+ *  hold their own settings.
+ *  @author Joseph Heupler
+ */
+final class MachineSpec {
+
+    /** A spec for machines with alphabet ALPHA, NUMROTORS slots (the
+     *  reflector included) and PAWLS pawls, taking their rotors from
+     *  ALLROTORS.  Only the wirings, notches and kinds of ALLROTORS are
+     *  used, so they may go on being used elsewhere. */
+    MachineSpec(Alphabet alpha, int numRotors, int pawls,
+                Collection<Rotor> allRotors) {
+        int n = alpha.size();
+        _alphabet = alpha;
+        _numRotors = numRotors;
+        _pawls = pawls;
+        int m = allRotors.size();
+        _rotates = new boolean[m];
+        _reflecting = new boolean[m];
+        _permutations = new Permutation[m];
+        _tables = new AtomicReferenceArray<>(m);
+        _notch = new boolean[m][n];
+        _identity = new int[n];
+        for (int c = 0; c < n; c += 1) {
+            _identity[c] = c;
+        }
+        int k = 0;
+        for (Rotor r : allRotors) {
+            if (r.size() != n) {
+                throw error("rotor %s does not match the alphabet",
+                            r.name());
+            }
+            _index.putIfAbsent(r.name(), k);
+            _rotates[k] = r.rotates();
+            _reflecting[k] = r.reflecting();
+            _permutations[k] = r.permutation();
+            String notches = r.notches();
+            for (int i = 0; i < notches.length(); i += 1) {
+                if (alpha.contains(notches.charAt(i))) {
+                    _notch[k][alpha.toInt(notches.charAt(i))] = true;
+                }
+            }
+            k += 1;
+        }
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the number of rotor slots of my machines. */
+    int numRotors() {
+        return _numRotors;
+    }
+
+    /** Return the number of pawls of my machines. */
+    int numPawls() {
+        return _pawls;
+    }
+
+    /** Return a new session with the rotors named ROTORS in its slots
+     *  (ROTORS[0] being the reflector), set to SETTING as by
+     *  Machine.setRotors, and with plugboard PLUGBOARD (null for none). */
+    Cursor session(String[] rotors, String setting, Permutation plugboard) {
+        if (rotors.length != _numRotors) {
+            throw error("need %d rotors, not %d", _numRotors,
+                        rotors.length);
+        }
+        int[] slots = new int[rotors.length];
+        for (int i = 0; i < rotors.length; i += 1) {
+            Integer k = _index.get(rotors[i]);
+            if (k == null) {
+                throw error("no rotor named %s", rotors[i]);
+            }
+            for (int j = 0; j < i; j += 1) {
+                if (slots[j] == k) {
+                    throw error("Duplicate Rotors not allowed, "
+                                + "duplicate found: %s", rotors[i]);
+                }
+            }
+            slots[i] = k;
+        }
+        if (!_reflecting[slots[0]]) {
+            throw error("%s is not a reflector", rotors[0]);
+        }
+        Cursor result = new Cursor(slots);
+        result.setRotors(setting);
+        result.setPlugboard(plugboard);
+        return result;
+    }
+
+    /** Return the forward and inverse tables of my rotor K, indexed
+     *  SETTING * alphabet().size() + C, building them if no session has
+     *  used the rotor yet.  Threads that race to build them build equal
+     *  tables, and all go on to use the first published. */
+    private int[][] tables(int k) {
+        int[][] result = _tables.get(k);
+        if (result != null) {
+            return result;
+        }
+        int n = _identity.length;
+        Permutation perm = _permutations[k];
+        int[] forward = new int[n * n], backward = new int[n * n];
+        for (int s = 0; s < n; s += 1) {
+            for (int p = 0; p < n; p += 1) {
+                forward[s * n + p] = perm.wrap(perm.permute(p + s) - s);
+                backward[s * n + p] = perm.wrap(perm.invert(p + s) - s);
+            }
+        }
+        _tables.compareAndSet(k, null, new int[][] { forward, backward });
+        return _tables.get(k);
+    }
+
+    /** The state of one machine built to my spec: the rotors in its
+     *  slots, their positions, and its plugboard.  It converts exactly
+     *  as a Machine with the same rotors, settings and plugboard would.
+     *  A cursor is meant for one thread at a time; its spec may be
+     *  shared. */
+    final class Cursor {
+
+        /** A cursor whose slot K holds my rotor SLOTS[K]. */
+        private Cursor(int[] slots) {
+            _slots = slots;
+            _pos = new int[slots.length];
+            _forward = new int[slots.length][];
+            _backward = new int[slots.length][];
+            for (int i = 0; i < slots.length; i += 1) {
+                int[][] tables = tables(slots[i]);
+                _forward[i] = tables[0];
+                _backward[i] = tables[1];
+            }
+        }
+
+        /** Return the spec I belong to. */
+        MachineSpec spec() {
+            return MachineSpec.this;
+        }
+
+        /** Set my rotors according to SETTING, which must be a string of
+         *  numRotors()-1 characters in my alphabet, the first for the
+         *  leftmost rotor after the reflector. */
+        void setRotors(String setting) {
+            if (setting.length() != _slots.length - 1) {
+                throw error("length of numRotors must always be one "
+                            + "greater than the # of characters in "
+                            + "setting");
+            }
+            for (int i = 1; i < _slots.length; i += 1) {
+                char c = setting.charAt(i - 1);
+                if (!_alphabet.contains(c)) {
+                    throw error("Char not in alphabet.");
+                }
+                _pos[i] = _alphabet.toInt(c);
+            }
+        }
+
+        /** Return the current settings of my rotors, in the form taken
+         *  by setRotors. */
+        String positions() {
+            StringBuilder result = new StringBuilder();
+            for (int i = 1; i < _pos.length; i += 1) {
+                result.append(_alphabet.toChar(_pos[i]));
+            }
+            return result.toString();
+        }
+
+        /** Set my plugboard to PLUGBOARD, or remove it if PLUGBOARD is
+         *  null. */
+        void setPlugboard(Permutation plugboard) {
+            if (plugboard == null) {
+                _plug = _identity;
+                return;
+            }
+            _plug = new int[_identity.length];
+            for (int c = 0; c < _plug.length; c += 1) {
+                _plug[c] = plugboard.permute(c);
+            }
+        }
+
+        /** Return the result of advancing my rotors and then converting
+         *  C (as an index in the range 0..alphabet().size()-1). */
+        int convert(int c) {
+            step();
+            int n = _identity.length, last = _slots.length - 1;
+            c = _plug[c];
+            for (int i = last; i >= 0; i -= 1) {
+                c = _forward[i][_pos[i] * n + c];
+            }
+            for (int i = 1; i <= last; i += 1) {
+                c = _backward[i][_pos[i] * n + c];
+            }
+            return _plug[c];
+        }
+
+        /** Return the conversion of MSG, as by Machine.convert(String):
+         *  blanks are dropped unless they are in my alphabet. */
+        String convert(String msg) {
+            boolean dropBlanks = !_alphabet.contains(' ');
+            StringBuilder result = new StringBuilder(msg.length());
+            for (int i = 0; i < msg.length(); i += 1) {
+                char c = msg.charAt(i);
+                if (dropBlanks && c == ' ') {
+                    continue;
+                } else if (!_alphabet.contains(c)) {
+                    throw error("Char not in alphabet.");
+                }
+                result.append(_alphabet.toChar(convert(_alphabet.toInt(c))));
+            }
+            return result.toString();
+        }
+
+        /** Advance my rotors by one keystroke, following the pawl and
+         *  notch rules of Machine, including the double step of the
+         *  middle rotors. */
+        private void step() {
+            int last = _slots.length - 1;
+            for (int i = 1; i < last; i += 1) {
+                int r = _slots[i];
+                if (_rotates[r]
+                    && (_notch[_slots[i + 1]][_pos[i + 1]]
+                        || _rotates[_slots[i - 1]] && _notch[r][_pos[i]])) {
+                    _pos[i] = _pos[i] + 1 == _identity.length ? 0
+                        : _pos[i] + 1;
+                }
+            }
+            if (_rotates[_slots[last]]) {
+                _pos[last] = _pos[last] + 1 == _identity.length ? 0
+                    : _pos[last] + 1;
+            }
+        }
+
+        /** The index of the rotor in each slot. */
+        private final int[] _slots;
+
+        /** The setting of the rotor in each slot. */
+        private final int[] _pos;
+
+        /** Forward and inverse tables of the rotor in each slot. */
+        private final int[][] _forward, _backward;
+
+        /** My plugboard, as a table. */
+        private int[] _plug;
+    }
+
+    /** My alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Number of slots, and of pawls, of my machines. */
+    private final int _numRotors, _pawls;
+
+    /** Index of each rotor, by name. */
+    private final HashMap<String, Integer> _index = new HashMap<>();
+
+    /** True for each rotor that can advance. */
+    private final boolean[] _rotates;
+
+    /** True for each rotor that is a reflector. */
+    private final boolean[] _reflecting;
+
+    /** The permutation of each rotor. */
+    private final Permutation[] _permutations;
+
+    /** Forward and inverse tables of each rotor (see tables), or null
+     *  until a session uses it. */
+    private final AtomicReferenceArray<int[][]> _tables;
+
+    /** _notch[R][S] is true iff rotor R is at a notch at setting S. */
+    private final boolean[][] _notch;
+
+    /** The identity table, the plugboard of cursors without one. */
+    private final int[] _identity;
+}
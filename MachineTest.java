@@ -1,6 +1,31 @@
 package enigma;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.Test;
 import org.junit.Rule;
 import org.junit.rules.Timeout;
@@ -76,4 +101,869 @@ public class MachineTest {
         assertEquals("QVPQSOKOILPUBKJZPISFXDW",
                 mach.convert("FROMHISSHOULDERHIAWATHA"));
     }
+
+    @Test
+    public void testReconfigure() {
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        String first = mach.convert("FROMHISSHOULDERHIAWATHA");
+        mach.setRotors(SETTING1);
+        assertEquals(first, mach.convert("FROMHISSHOULDERHIAWATHA"));
+        mach.setRotors(SETTING1);
+        assertEquals("FROMHISSHOULDERHIAWATHA", mach.convert(first));
+    }
+
+    @Test
+    public void testSettingsFollowConversion() {
+        Machine mach = mach1();
+        mach.convert("ABCD");
+        assertEquals(AZ.toInt('I'), mach.getRotor(4).setting());
+        assertEquals(AZ.toInt('L'), mach.getRotor(3).setting());
+        mach.setPlugboard(new Permutation("(YF) (HZ)", AZ));
+        mach.convert("A");
+        assertEquals(AZ.toInt('J'), mach.getRotor(4).setting());
+    }
+
+    @Test
+    public void testSpecialized() {
+        Machine mach = mach1();
+        mach.setSpecialized(true);
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW",
+                mach.convert("FROMHISSHOULDERHIAWATHA"));
+        assertEquals(AZ.toInt('M'), mach.getRotor(3).setting());
+        mach.setRotors(SETTING1);
+        assertEquals(AZ.toInt('Q'), mach.convert(AZ.toInt('F')));
+        assertEquals("VPQSOKOILPUBKJZPISFXDW",
+                mach.convert("ROMHISSHOULDERHIAWATHA"));
+    }
+
+    @Test
+    public void testStationaryRotors() {
+        HashMap<String, String> nav = TestUtils.NAVALA;
+        HashMap<String, Rotor> rotors = new HashMap<>(ROTORS);
+        rotors.put("IIIfixed",
+                new FixedRotor("IIIfixed",
+                        new Permutation(nav.get("III"), AZ)));
+        rotors.put("Inotch",
+                new MovingRotor("Inotch",
+                        new Permutation(nav.get("I"), AZ), ""));
+        Machine moving = new Machine(AZ, 4, 2, rotors.values());
+        moving.insertRotors(new String[] { "B", "Beta", "III", "Inotch" });
+        moving.setRotors("XLE");
+        Machine fixed = new Machine(AZ, 4, 1, rotors.values());
+        fixed.insertRotors(new String[] { "B", "Beta", "IIIfixed", "Inotch" });
+        fixed.setRotors("XLE");
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 500; i += 1) {
+            msg.append(AZ.toChar(i * 7 % 26));
+        }
+        assertEquals(fixed.convert(msg.toString()),
+                     moving.convert(msg.toString()));
+    }
+
+    @Test
+    public void testKeystream() {
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        Keystream keystream = mach.keystream(1 << 20);
+        assertEquals(26 * 25 * 26, keystream.period());
+        assertEquals(null, mach.keystream(1000));
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 40000; i += 1) {
+            msg.append(AZ.toChar(i * 11 % 26));
+        }
+        String expected = mach.convert(msg.toString());
+        int middle = mach.getRotor(3).setting();
+        mach.setRotors(SETTING1);
+        mach.useKeystream(keystream);
+        assertEquals(expected, mach.convert(msg.toString()));
+        assertEquals(middle, mach.getRotor(3).setting());
+    }
+
+    @Test
+    public void testTableStore() throws IOException, InterruptedException {
+        Machine mach = mach1();
+        Keystream keystream = mach.keystream(1 << 20);
+        Path dir = Files.createTempDirectory("enigma");
+        Path file = dir.resolve("enigma.tab");
+        try {
+            byte[] fingerprint = {1, 2, 3};
+            HashMap<String, Keystream> tables = new HashMap<>();
+            tables.put("* B BETA III IV I AXLE", keystream);
+            Thread[] writers = new Thread[4];
+            for (int i = 0; i < writers.length; i += 1) {
+                writers[i] = new Thread(() -> {
+                    for (int k = 0; k < 5; k += 1) {
+                        TableStore.write(file, fingerprint, tables);
+                    }
+                });
+                writers[i].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(1, files.count());
+            }
+            assertNull(TableStore.open(file, new byte[] {1, 2, 4}));
+            Keystream mapped = TableStore.open(file, fingerprint)
+                .get("* B BETA III IV I AXLE");
+            assertEquals(keystream.period(), mapped.period());
+            assertEquals(keystream.prefix(), mapped.prefix());
+            for (int row = 0; row < keystream.rows(); row += 997) {
+                for (int c = 0; c < 26; c += 1) {
+                    assertEquals(keystream.map(row, c), mapped.map(row, c));
+                }
+            }
+            byte[] contents = Files.readAllBytes(file);
+            contents[contents.length / 2] ^= 1;
+            Files.write(file, contents);
+            try {
+                TableStore.open(file, fingerprint);
+                fail("corrupt store opened");
+            } catch (EnigmaException excp) {
+                assertTrue(excp.getMessage().contains("corrupt"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testSkip() {
+        HashMap<String, String> nav = TestUtils.NAVALA;
+        HashMap<String, Rotor> rotors = new HashMap<>(ROTORS);
+        for (String name : new String[] { "VI", "VII", "VIII" }) {
+            rotors.put(name,
+                    new MovingRotor(name,
+                            new Permutation(nav.get(name), AZ), "ZM"));
+        }
+        Machine stepped = new Machine(AZ, 5, 3, rotors.values());
+        Machine skipped = new Machine(AZ, 5, 3, rotors.values());
+        for (Machine mach : new Machine[] { stepped, skipped }) {
+            mach.insertRotors(new String[] { "B", "Beta", "VI", "VII", "VIII" });
+            mach.setRotors("AYLX");
+        }
+        int[] gaps = { 0, 1, 13, 2, 26, 400, 7, 1000, 3 };
+        for (int gap : gaps) {
+            for (int i = 0; i < gap; i += 1) {
+                stepped.convert(0);
+            }
+            skipped.skip(gap);
+            assertEquals(stepped.position(), skipped.position());
+            for (int k = 1; k < 5; k += 1) {
+                assertEquals(stepped.getRotor(k).setting(),
+                             skipped.getRotor(k).setting());
+            }
+            assertEquals(stepped.convert("HIAWATHA"),
+                         skipped.convert("HIAWATHA"));
+        }
+        Keystream keystream = skipped.keystream(1 << 22);
+        long base = skipped.position() + keystream.prefix();
+        skipped.seek(base);
+        String expected = skipped.convert("HIAWATHA");
+        skipped.seek(base + (long) keystream.period() * 123456789L);
+        assertEquals(expected, skipped.convert("HIAWATHA"));
+        stepped.seek(12);
+        skipped.seek(12);
+        assertEquals(stepped.convert("HIAWATHA"),
+                     skipped.convert("HIAWATHA"));
+    }
+
+    @Test
+    public void testParallel() {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 20000; i += 1) {
+            msg.append(AZ.toChar(i * 17 % 23));
+        }
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        String expected = mach.convert(msg.toString());
+        for (boolean specialized : new boolean[] { false, true }) {
+            mach.setSpecialized(specialized);
+            mach.setRotors(SETTING1);
+            mach.setParallelThreshold(37);
+            assertEquals(expected, mach.convert(msg.toString()));
+            assertEquals(20000, mach.position());
+            mach.setParallelThreshold(0);
+            mach.seek(0);
+            assertEquals(expected.substring(0, 100),
+                         mach.convert(msg.substring(0, 100)));
+        }
+    }
+
+    @Test
+    public void testCopy() {
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        String expected = mach.convert("FROM HIS SHOULDER HIAWATHA");
+        Machine copy = mach.copy();
+        copy.insertRotors(ROTORS1);
+        copy.setRotors(SETTING1);
+        copy.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        mach.setRotors("ZZZZ");
+        assertEquals(expected, copy.convert("FROM HIS SHOULDER HIAWATHA"));
+        assertNotSame(mach.getRotor(4), copy.getRotor(4));
+    }
+
+    @Test
+    public void testEnigmaProcessor() {
+        Permutation plugboard =
+            new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ);
+        Machine mach = mach1();
+        mach.setPlugboard(plugboard);
+        String expected = mach.convert("FROM HIS SHOULDER HIAWATHA");
+        EnigmaProcessor processor =
+            new EnigmaProcessor(new Machine(AZ, 5, 3, ROTORS.values()));
+        List<String> items = new ArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        boolean[] complete = new boolean[1];
+        processor.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+            public void onNext(String item) {
+                items.add(item);
+            }
+            public void onError(Throwable excp) {
+                fail(excp.getMessage());
+            }
+            public void onComplete() {
+                complete[0] = true;
+            }
+        });
+        SubmissionPublisher<EnigmaProcessor.Item> publisher =
+            new SubmissionPublisher<>(Runnable::run, 16);
+        publisher.subscribe(processor);
+        publisher.submit(EnigmaProcessor.Item.settings(ROTORS1, SETTING1,
+                                                       plugboard));
+        for (String word : "FROM HIS SHOULDER HIAWATHA".split(" ")) {
+            publisher.submit(EnigmaProcessor.Item.message(word));
+        }
+        publisher.close();
+        assertTrue(items.isEmpty());
+        subscription[0].request(1);
+        assertEquals(List.of(expected.replace(" ", "")), items);
+        assertTrue(complete[0]);
+    }
+
+    @Test
+    public void testEnigmaProcessorFailure() {
+        assertTrue(processorFailure(EnigmaProcessor.Item.settings(
+            new String[] {"B", "Beta", "III", "IV", "NONE"}, SETTING1, null))
+                   instanceof EnigmaException);
+        assertTrue(processorFailure(EnigmaProcessor.Item.settings(
+            ROTORS1, null, null)) instanceof NullPointerException);
+    }
+
+    /** Return the failure signalled by an EnigmaProcessor given ITEM,
+     *  checking that it cancelled its upstream rather than throwing. */
+    private Throwable processorFailure(EnigmaProcessor.Item item) {
+        EnigmaProcessor processor =
+            new EnigmaProcessor(new Machine(AZ, 5, 3, ROTORS.values()));
+        Throwable[] failure = new Throwable[1];
+        processor.subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription s) {
+                s.request(1);
+            }
+            public void onNext(String converted) {
+                fail("unexpected item " + converted);
+            }
+            public void onError(Throwable excp) {
+                failure[0] = excp;
+            }
+            public void onComplete() {
+                fail("completed despite a bad item");
+            }
+        });
+        boolean[] cancelled = new boolean[1];
+        processor.onSubscribe(new Flow.Subscription() {
+            public void request(long n) {
+            }
+            public void cancel() {
+                cancelled[0] = true;
+            }
+        });
+        processor.onNext(item);
+        assertTrue(cancelled[0]);
+        return failure[0];
+    }
+
+    @Test
+    public void testMachineSpec() {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 5000; i += 1) {
+            msg.append(AZ.toChar(i * 7 % 26));
+        }
+        Permutation plugboard =
+            new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ);
+        Machine mach = mach1();
+        mach.setPlugboard(plugboard);
+        String expected = mach.convert(msg.toString());
+        MachineSpec spec = new MachineSpec(AZ, 5, 3, ROTORS.values());
+        MachineSpec.Cursor one = spec.session(ROTORS1, SETTING1, plugboard),
+            two = spec.session(ROTORS1, SETTING1, plugboard);
+        StringBuilder first = new StringBuilder(),
+            second = new StringBuilder();
+        for (int i = 0; i < msg.length(); i += 100) {
+            String chunk = msg.substring(i, Math.min(msg.length(), i + 100));
+            first.append(one.convert(chunk));
+            second.append(two.convert(chunk));
+        }
+        assertEquals(expected, first.toString());
+        assertEquals(expected, second.toString());
+        one.setRotors(SETTING1);
+        assertEquals(SETTING1, one.positions());
+        assertEquals(expected.substring(0, 10),
+                     one.convert(msg.substring(0, 10)));
+    }
+
+    @Test
+    public void testServer() throws IOException, InterruptedException {
+        MachineSpec spec = new MachineSpec(AZ, 5, 3, ROTORS.values());
+        Server.Sessions sessions = settings -> {
+            String[] words = settings.split(" ");
+            if (words.length != 7 || !words[0].equals("*")) {
+                throw EnigmaException.error("bad settings %s", settings);
+            }
+            return spec.session(Arrays.copyOfRange(words, 1, 6),
+                                words[6], null);
+        };
+        Path dir = Files.createTempDirectory("enigma");
+        Path socket = dir.resolve("server.sock");
+        Thread server = new Thread(() -> {
+            try {
+                Server.serve(socket, new AtomicReference<>(sessions));
+            } catch (IOException excp) {
+                return;
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        try {
+            while (true) {
+                try {
+                    new EnigmaClient(socket).close();
+                    break;
+                } catch (IOException excp) {
+                    Thread.sleep(10);
+                }
+            }
+            String expected = mach1().convert("FROM HIS SHOULDER");
+            try (EnigmaClient client = new EnigmaClient(socket)) {
+                assertEquals("no settings", serverError(client, null));
+                client.setUp("* B Beta III IV I AXLE");
+                assertEquals(expected.substring(0, 4), client.convert("FROM"));
+                assertEquals("empty settings", serverError(client, " "));
+                assertEquals("bad settings * B", serverError(client, "* B"));
+                assertEquals(expected.substring(4),
+                             client.convert("HIS SHOULDER"));
+            }
+            try (SocketChannel raw =
+                     SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                raw.connect(UnixDomainSocketAddress.of(socket));
+                ByteBuffer buf =
+                    ByteBuffer.allocate(Server.HEADER + Server.MAX_REPLY);
+                Server.write(raw, buf, (byte) 'X', "");
+                buf.clear().limit(Server.HEADER);
+                assertTrue(Server.fill(raw, buf));
+                assertEquals(Server.ERROR, buf.get(0));
+                buf.limit(Server.HEADER + buf.getInt(1));
+                assertTrue(Server.fill(raw, buf));
+                buf.clear().limit(1);
+                assertFalse(Server.fill(raw, buf));
+            }
+        } finally {
+            server.interrupt();
+            server.join();
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /** Return the message of the error CLIENT gets for the settings line
+     *  SETTINGS, or for a message if SETTINGS is null. */
+    private String serverError(EnigmaClient client, String settings)
+        throws IOException {
+        try {
+            if (settings == null) {
+                client.convert("A");
+            } else {
+                client.setUp(settings);
+            }
+        } catch (EnigmaException excp) {
+            return excp.getMessage();
+        }
+        fail("no error from the server");
+        return null;
+    }
+
+    @Test
+    public void testReload() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        Path config = dir.resolve("enigma.conf");
+        HashMap<String, String> nav = TestUtils.NAVALA;
+        String common = TestUtils.UPPER_STRING + "\n5 3\n"
+            + " B R " + nav.get("B") + "\n Beta N " + nav.get("Beta") + "\n"
+            + " III MV " + nav.get("III") + "\n IV MJ " + nav.get("IV")
+            + "\n";
+        Files.writeString(config, common + " I MQ " + nav.get("I") + "\n");
+        String settings = "* B Beta III IV I AXLE";
+        String expected = mach1().convert("FROM HIS SHOULDER");
+        Server.Sessions original = Main.load(config.toString());
+        AtomicReference<Server.Sessions> sessions =
+            new AtomicReference<>(original);
+        Closeable watcher = Main.reload(config.toString(), sessions);
+        try {
+            MachineSpec.Cursor old = sessions.get().session(settings);
+            assertEquals(expected.substring(0, 7), old.convert("FROM HIS"));
+            Files.writeString(config, common + " I MQ " + nav.get("II")
+                              + "\n V MZ " + nav.get("V") + "\n");
+            while (sessions.get() == original) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected.substring(7), old.convert("SHOULDER"));
+            assertFalse(expected.equals(sessions.get().session(settings)
+                                        .convert("FROM HIS SHOULDER")));
+            sessions.get().session("* B Beta III IV V AXLE");
+        } finally {
+            watcher.close();
+            Files.deleteIfExists(config);
+            Files.deleteIfExists(dir);
+        }
+        try {
+            original.session("* B Beta III IV V AXLE");
+            fail("old configuration has rotor V");
+        } catch (EnigmaException excp) {
+            return;
+        }
+    }
+
+    @Test
+    public void testConfigImage() throws IOException {
+        Path file = Files.createTempFile("enigma", ".img");
+        try {
+            new ConfigImage(AZ, 5, 3, new ArrayList<>(
+                ROTORS.values())).write(file);
+            ConfigImage image = ConfigImage.read(file);
+            assertEquals(AZ.chars(), image.alphabet().chars());
+            assertEquals(ROTORS.size(), image.rotors().size());
+            Machine mach = new Machine(image.alphabet(), image.numRotors(),
+                                       image.numPawls(), image.rotors());
+            mach.insertRotors(ROTORS1);
+            mach.setRotors(SETTING1);
+            mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)",
+                                              image.alphabet()));
+            assertEquals("QVPQSOKOILPUBKJZPISFXDW",
+                         mach.convert("FROM HIS SHOULDER HIAWATHA"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testConfigure() {
+        Machine mach = new Machine(AZ, 5, 3, ROTORS.values());
+        Permutation plugboard =
+            mach.parsePlugboard("* B Beta III IV I AXLE (HQ) (EX) (IP) "
+                                + "(TR) (BY)");
+        mach.configure(ROTORS1, SETTING1, plugboard);
+        assertEquals(ROTORS.get("I"), mach.getRotor(4));
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW",
+                     mach.convert("FROM HIS SHOULDER HIAWATHA"));
+        assertNull(mach.parsePlugboard("* B Beta III IV I AXLE"));
+        mach.configure(ROTORS1, SETTING1, null);
+        assertNull(mach.plugboard());
+    }
+
+    @Test
+    public void testConvertBuffers() {
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        char[] in = "..FROM HIS SHOULDER HIAWATHA".toCharArray();
+        char[] out = new char[30];
+        assertEquals(23, mach.convert(in, 2, in.length - 2, out, 1));
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW", new String(out, 1, 23));
+        mach.setRotors(SETTING1);
+        byte[] bytes = "FROM HIS SHOULDER HIAWATHA".getBytes();
+        assertEquals(23, mach.convert(bytes, 0, bytes.length, bytes, 0));
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW", new String(bytes, 0, 23));
+        mach.setRotors(SETTING1);
+        try {
+            mach.convert("FROM h".toCharArray(), 0, 6, out, 0);
+            fail("lower-case character accepted");
+        } catch (EnigmaException excp) {
+            assertTrue(excp.getMessage().contains("position 5"));
+        }
+        assertEquals(4, mach.position());
+    }
+
+    @Test
+    public void testConvertStream() throws IOException {
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        StringWriter out = new StringWriter();
+        assertEquals(23, mach.convert(
+            new StringReader("FROM HIS\tSHOULDER\nHIAWATHA"), out));
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW", out.toString());
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 200000; i += 1) {
+            msg.append(AZ.toChar(i * 7 % 26));
+        }
+        mach.setRotors(SETTING1);
+        String expected = mach.convert(msg.toString());
+        mach.setRotors(SETTING1);
+        out = new StringWriter();
+        mach.convert(new StringReader(msg.toString()), out);
+        assertEquals(expected, out.toString().replace(" ", ""));
+        assertEquals(200000 + 200000 / 5 - 1, out.toString().length());
+    }
+
+    @Test
+    public void testConvertByteBuffer() {
+        Alphabet bytes = Alphabet.ofBytes();
+        StringBuilder reflector = new StringBuilder();
+        StringBuilder wiring = new StringBuilder("(");
+        for (int k = 0; k < 256; k += 2) {
+            reflector.append(String.format("(%02X%02X)", k, 255 - k));
+        }
+        for (int k = 0; k < 256; k += 1) {
+            wiring.append(String.format("%02X", k * 77 % 256));
+        }
+        wiring.append(")");
+        List<Rotor> rotors = List.of(
+            new Reflector("R", new Permutation(reflector.toString(), bytes)),
+            new MovingRotor("M", new Permutation(wiring.toString(), bytes),
+                            Alphabet.fromHex("00FE")),
+            new MovingRotor("F", new Permutation(wiring.toString(), bytes),
+                            Alphabet.fromHex("20")));
+        Machine mach = new Machine(bytes, 3, 2, rotors);
+        mach.insertRotors(new String[] { "R", "M", "F" });
+        mach.setRotors(Alphabet.fromHex("1F3C"));
+        ByteBuffer plain = ByteBuffer.allocate(5000);
+        for (int i = 0; i < plain.capacity(); i += 1) {
+            plain.put((byte) (i * 31));
+        }
+        plain.flip();
+        ByteBuffer cipher = ByteBuffer.allocateDirect(5000);
+        assertEquals(5000, mach.convert(plain.duplicate(), cipher));
+        cipher.flip();
+        mach.seek(0);
+        ByteBuffer back = ByteBuffer.allocate(5000);
+        assertEquals(5000, mach.convert(cipher, back));
+        back.flip();
+        assertEquals(plain, back);
+    }
+
+    @Test
+    public void testEnigmaChannel() throws IOException {
+        Machine mach = mach1();
+        mach.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", AZ));
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = EnigmaChannel.outputStream(sink, mach);
+        out.write('F');
+        out.write("ROM HIS SHOULDER HIAWATHA".getBytes());
+        out.close();
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW", sink.toString());
+        mach.seek(0);
+        ReadableByteChannel in = EnigmaChannel.readable(
+            Channels.newChannel(new ByteArrayInputStream(sink.toByteArray())),
+            mach);
+        ByteBuffer plain = ByteBuffer.allocate(100);
+        while (in.read(plain) != -1) {
+            continue;
+        }
+        assertEquals("FROMHISSHOULDERHIAWATHA",
+                     new String(plain.array(), 0, plain.position()));
+    }
+
+    @Test
+    public void testBatchPairs() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        try {
+            Path a = dir.resolve("a.in"), b = dir.resolve("b.in");
+            Files.writeString(a, BATCH_INPUT);
+            Files.writeString(b, BATCH_INPUT + BATCH_INPUT);
+            assertEquals(0, runMain(dir, "-ea", "--batch", batchConfig(dir),
+                                    a.toString(), dir + "/a.out",
+                                    b.toString(), dir + "/b.out"));
+            assertEquals(BATCH_OUTPUT,
+                         Files.readString(dir.resolve("a.out")));
+            assertEquals(BATCH_OUTPUT + BATCH_OUTPUT,
+                         Files.readString(dir.resolve("b.out")));
+            assertEquals(List.of(a + ": ok", b + ": ok"),
+                         Files.readAllLines(dir.resolve("stdout")));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testBatchDirectory() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        try {
+            Path in = batchInputs(dir, "x.in", "y.in", "z.txt");
+            assertEquals(0, runMain(dir, "-ea", "--batch", batchConfig(dir),
+                                    in.toString(), dir + "/out"));
+            assertEquals(List.of("x.in", "y.in", "z.txt"),
+                         fileNames(dir.resolve("out")));
+            assertEquals(BATCH_OUTPUT,
+                         Files.readString(dir.resolve("out/z.txt")));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testBatchGlob() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        try {
+            Path in = batchInputs(dir, "x.in", "y.in", "z.txt");
+            assertEquals(0, runMain(dir, "-ea", "--batch", batchConfig(dir),
+                                    in + "/*.in", dir + "/out"));
+            assertEquals(List.of("x.in", "y.in"),
+                         fileNames(dir.resolve("out")));
+            assertEquals(BATCH_OUTPUT,
+                         Files.readString(dir.resolve("out/y.in")));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testBatchSameDirectory()
+        throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        try {
+            Path in = batchInputs(dir, "x.in");
+            assertEquals(1, runMain(dir, "-ea", "--batch", batchConfig(dir),
+                                    in.toString(), in.toString()));
+            assertEquals(List.of("x.in"), fileNames(in));
+            assertTrue(Files.readString(dir.resolve("stderr"))
+                       .contains("output directory is the input directory"));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testBatchFailure() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        try {
+            Path in = batchInputs(dir, "a.in", "b.in", "c.in");
+            Files.writeString(in.resolve("b.in"),
+                              "* B Beta III IV NONE AXLE\nHELLO\n");
+            assertEquals(1, runMain(dir, "-ea", "--batch", batchConfig(dir),
+                                    in.toString(), dir + "/out"));
+            assertEquals(BATCH_OUTPUT,
+                         Files.readString(dir.resolve("out/a.in")));
+            assertEquals(BATCH_OUTPUT,
+                         Files.readString(dir.resolve("out/c.in")));
+            assertEquals(List.of(in.resolve("a.in") + ": ok",
+                                 in.resolve("c.in") + ": ok"),
+                         Files.readAllLines(dir.resolve("stdout")));
+            List<String> errors = Files.readAllLines(dir.resolve("stderr"));
+            assertEquals(2, errors.size());
+            assertTrue(errors.get(0).startsWith("Error: "
+                                                + in.resolve("b.in") + ": "));
+            assertEquals("Error: 1 of 3 files failed", errors.get(1));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    @Test
+    public void testBatchManyFiles() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("enigma");
+        try {
+            Path in = batchInputs(dir);
+            for (int i = 0; i < 400; i += 1) {
+                Files.writeString(in.resolve("m" + i + ".txt"), BATCH_INPUT);
+            }
+            assertEquals(0, runMain(dir, "-Xmx32m", "--batch",
+                                    batchConfig(dir), in + "/*.txt",
+                                    dir.resolve("out").toString()));
+            for (int i = 0; i < 400; i += 1) {
+                assertEquals(BATCH_OUTPUT, Files.readString(
+                    dir.resolve("out").resolve("m" + i + ".txt")));
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /** A message file, and its conversion by Main. */
+    private static final String BATCH_INPUT =
+        "* B Beta III IV I AXLE\nFROM HIS SHOULDER\n",
+        BATCH_OUTPUT = "HYIHL BKOML IUYDC" + System.lineSeparator();
+
+    /** Write a configuration with the rotors of ROTORS to a file in DIR,
+     *  and return its name. */
+    private static String batchConfig(Path dir) throws IOException {
+        HashMap<String, String> nav = TestUtils.NAVALA;
+        Path config = dir.resolve("enigma.conf");
+        Files.writeString(config, TestUtils.UPPER_STRING + "\n5 3\n"
+                          + " B R " + nav.get("B") + "\n Beta N "
+                          + nav.get("Beta") + "\n I MQ " + nav.get("I")
+                          + "\n III MV " + nav.get("III") + "\n IV MJ "
+                          + nav.get("IV") + "\n");
+        return config.toString();
+    }
+
+    /** Make a directory "in" in DIR holding a message file, BATCH_INPUT,
+     *  with each of the names NAMES, and return it. */
+    private static Path batchInputs(Path dir, String... names)
+        throws IOException {
+        Path in = Files.createDirectory(dir.resolve("in"));
+        for (String name : names) {
+            Files.writeString(in.resolve(name), BATCH_INPUT);
+        }
+        return in;
+    }
+
+    /** Return the names of the files in DIR, in order. */
+    private static List<String> fileNames(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /** Run enigma.Main with arguments ARGS in a JVM of its own, started
+     *  with the option JVMOPTION, and return its exit code.  Its standard
+     *  output and error go to the files "stdout" and "stderr" in DIR. */
+    private static int runMain(Path dir, String jvmOption, String... args)
+        throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+            Path.of(System.getProperty("java.home"), "bin", "java")
+                .toString(), jvmOption,
+            "-cp", System.getProperty("java.class.path"), "enigma.Main"));
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command)
+            .redirectOutput(dir.resolve("stdout").toFile())
+            .redirectError(dir.resolve("stderr").toFile())
+            .start().waitFor();
+    }
+
+    /** Delete DIR and everything in it. */
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder())
+                     .toArray(Path[]::new)) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testPipelineOrder() throws IOException {
+        List<String> lines = pipelineLines(3000);
+        List<String> written = new ArrayList<>();
+        Iterator<String> input = lines.iterator();
+        Pipeline.run(() -> input.hasNext() ? input.next() : null,
+                     MachineTest::copy, collect(written));
+        assertEquals(lines, written);
+    }
+
+    @Test
+    public void testPipelineReadFailure() {
+        List<String> lines = pipelineLines(2500);
+        List<String> written = new ArrayList<>();
+        Iterator<String> input = lines.iterator();
+        IOException failure = new IOException("read failed");
+        try {
+            Pipeline.run(() -> {
+                if (!input.hasNext()) {
+                    throw failure;
+                }
+                return input.next();
+            }, MachineTest::copy, collect(written));
+            fail("read failure not thrown");
+        } catch (IOException excp) {
+            assertSame(failure, excp);
+        }
+        assertEquals(lines, written);
+    }
+
+    @Test
+    public void testPipelineWriteFailure() {
+        List<String> lines = pipelineLines(3000);
+        List<String> written = new ArrayList<>();
+        Iterator<String> input = lines.iterator();
+        IOException failure = new IOException("write failed");
+        try {
+            Pipeline.run(() -> input.hasNext() ? input.next() : null,
+                         MachineTest::copy, (msg, off, len) -> {
+                    if (written.size() == 2000) {
+                        throw failure;
+                    }
+                    written.add(new String(msg, off, len));
+                });
+            fail("write failure not thrown");
+        } catch (IOException excp) {
+            assertSame(failure, excp);
+        }
+        assertEquals(lines.subList(0, 2000), written);
+    }
+
+    @Test
+    public void testSpscQueue() throws InterruptedException {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        int count = 100000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i += 1) {
+                queue.put(i);
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i += 1) {
+            assertEquals(Integer.valueOf(i), queue.take());
+        }
+        producer.join();
+        assertNull(queue.poll());
+        while (queue.offer(0)) {
+            continue;
+        }
+        boolean[] added = { true };
+        Thread blocked = new Thread(() -> added[0] = queue.put(1));
+        blocked.start();
+        queue.stop();
+        blocked.join();
+        assertFalse(added[0]);
+        SpscQueue<Integer> empty = new SpscQueue<>(4);
+        Integer[] taken = { 0 };
+        Thread waiting = new Thread(() -> taken[0] = empty.take());
+        waiting.start();
+        empty.stop();
+        waiting.join();
+        assertNull(taken[0]);
+    }
+
+    /** Return COUNT distinct lines, short ones and then some long ones
+     *  among them, so that a pipeline passes them in several batches of
+     *  each kind, ended both by their number of lines and by their
+     *  length. */
+    private static List<String> pipelineLines(int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            result.add(i + "x".repeat(i >= 1500 && i % 7 == 0 ? 500 : 10));
+        }
+        return result;
+    }
+
+    /** Return a destination adding each message to WRITTEN. */
+    private static Pipeline.Messages collect(List<String> written) {
+        return (msg, off, len) -> written.add(new String(msg, off, len));
+    }
+
+    /** A pipeline stage sending each line of IN unchanged to OUT. */
+    private static void copy(Pipeline.Lines in, Pipeline.Messages out)
+        throws IOException {
+        for (String line = in.readLine(); line != null;
+             line = in.readLine()) {
+            out.message(line.toCharArray(), 0, line.length());
+        }
+    }
 }
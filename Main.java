@@ -1,13 +1,46 @@
 package enigma;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.File;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,17 +63,57 @@ public final class Main {
      *  input.  ARGS[2] is optional; when present, it names an output
      *  file for processed messages.  Otherwise, output goes to the
      *  standard output. Exits normally if there are no errors in the input;
-     *  otherwise with code 1. */
+     *  otherwise with code 1.  With --batch, ARGS[0] is followed instead
+     *  by pairs of input and output files, or by an input directory or
+     *  glob pattern and an output directory (see processBatch). */
     public static void main(String... args) {
         try {
             CommandArgs options =
-                new CommandArgs("--verbose --=(.*){1,3}", args);
-            if (!options.ok()) {
+                new CommandArgs("--verbose --specialize --keystream --mapped "
+                                + "--binary --pipeline --blocks --batch --reload "
+                                + "--tables=(.+) --serve=(.+) "
+                                + "--compile=(.+) "
+                                + "--parallel=(\\d{1,9}) --=(.*){1,}", args);
+            _batch = options.contains("--batch");
+            if (options.contains("--serve")) {
+                _serve = Paths.get(options.get("--serve").get(0));
+            }
+            _reload = options.contains("--reload");
+            if (options.contains("--compile")) {
+                _compile = Paths.get(options.get("--compile").get(0));
+            }
+            if (!options.ok()
+                || !_batch && options.get("--").size() > 3
+                || _serve != null && options.get("--").size() != 1
+                || _reload && _serve == null
+                || _compile != null && options.get("--").size() != 1) {
                 throw error("Usage: java enigma.Main [--verbose] "
-                            + "[INPUT [OUTPUT]]");
+                            + "[--specialize] [--keystream] "
+                            + "[--mapped] [--binary] [--pipeline] "
+                            + "[--blocks] "
+                            + "[--tables=FILE] "
+                            + "[--parallel=CHUNK] "
+                            + "CONFIG [INPUT [OUTPUT]], or with --batch, "
+                            + "CONFIG (INPUT OUTPUT)... "
+                            + "or CONFIG DIR|GLOB OUTDIR, "
+                            + "or --serve=SOCKET [--reload] CONFIG, "
+                            + "or --compile=IMAGE CONFIG");
             }
 
             _verbose = options.contains("--verbose");
+            _specialize = options.contains("--specialize");
+            _mapped = options.contains("--mapped");
+            _binary = options.contains("--binary");
+            _pipeline = options.contains("--pipeline");
+            _blocks = options.contains("--blocks");
+            _keystream = options.contains("--keystream")
+                || options.contains("--tables");
+            if (options.contains("--tables")) {
+                _tables = Paths.get(options.get("--tables").get(0));
+            }
+            if (options.contains("--parallel")) {
+                _parallel = Integer.parseInt(options.get("--parallel").get(0));
+            }
             new Main(options.get("--")).process();
             return;
         } catch (EnigmaException excp) {
@@ -55,23 +128,66 @@ public final class Main {
      */
     Main(List<String> args) {
         // get config file from args
-        _config = getInput(args.get(0));
+        _configName = args.get(0);
+        _config = getInput(_configName);
+        _resolved = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Resolved> eldest) {
+                return size() > RESOLVED_CACHE;
+            }
+        };
+        _keystreams = new KeystreamCache(KEYSTREAM_CACHE_BYTES,
+                                         KEYSTREAM_MAX_ENTRIES);
+
+        // leave the files of a batch for processBatch; a server or a
+        // compilation has none
+        if (_serve != null || _compile != null) {
+            return;
+        } else if (_batch) {
+            _files = args.subList(1, args.size());
+            return;
+        }
+
+        // map the files instead if asked to and both are given, and
+        // leave binary files for processBinary to open
+        if (_mapped && args.size() > 2 || _binary) {
+            _inputName = args.size() > 1 ? args.get(1) : null;
+            _outputName = args.size() > 2 ? args.get(2) : null;
+            return;
+        }
 
         // get input file from args
         if (args.size() > 1) {
-            _input = getInput(args.get(1));
+            _input = getReader(args.get(1));
         } else {
-            _input = new Scanner(System.in);
+            _input = new BufferedReader(new InputStreamReader(System.in),
+                                        IO_BUFFER);
         }
 
         // get output file from args
         if (args.size() > 2) {
             _output = getOutput(args.get(2));
         } else {
-            _output = System.out;
+            _output = new BufferedWriter(new OutputStreamWriter(System.out),
+                                         IO_BUFFER);
         }
     }
 
+    /** A Main that processes the file named INPUT to the file named OUTPUT
+     *  for processBatch, sharing the configuration read by CONFIG. */
+    private Main(Main config, String input, String output) {
+        _alphabet = config._alphabet;
+        _allRotors = config._allRotors;
+        _numRotors = config._numRotors;
+        _numPawls = config._numPawls;
+        _rotorNames = config._rotorNames;
+        _resolved = config._resolved;
+        _keystreams = config._keystreams;
+        _inputName = input;
+        _outputName = output;
+    }
+
     /** Return a Scanner reading from the file named NAME.
      * @param name file name
      * @return Scanner for file named NAME
@@ -84,14 +200,31 @@ public final class Main {
         }
     }
 
+    /** Return a BufferedReader reading from the file named NAME.
+     * @param name file name
+     * @return BufferedReader for file named NAME
+     */
+    private BufferedReader getReader(String name) {
+        try {
+            return new BufferedReader(
+                new InputStreamReader(
+                    Channels.newInputStream(FileChannel.open(Paths.get(name)))),
+                IO_BUFFER);
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
     /**
-     *  Return a PrintStream writing to the file named NAME.
+     *  Return a buffered Writer writing to the file named NAME.
      * @param name file name
-     * @return PrintStream for file named NAME
+     * @return Writer for file named NAME
      */
-    private PrintStream getOutput(String name) {
+    private Writer getOutput(String name) {
         try {
-            return new PrintStream(new File(name));
+            return new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(name)),
+                IO_BUFFER);
         } catch (IOException excp) {
             throw error("could not open %s", name);
         }
@@ -105,29 +238,663 @@ public final class Main {
     private void process() {
         // FIXME
         Machine enigmaMachine = readConfig();
-        if (!_input.hasNext()) {
-            throw EnigmaException.error(
-                    "Wrong format for input!");
+        if (_compile != null) {
+            new ConfigImage(_alphabet, _numRotors, _numPawls, _allRotors)
+                .write(_compile);
+            return;
+        } else if (_serve != null) {
+            serve();
+            return;
+        }
+        enigmaMachine.setSpecialized(_specialize);
+        enigmaMachine.setParallelThreshold(_parallel);
+        TableStore store = null;
+        if (_tables != null) {
+            store = TableStore.open(_tables, fingerprint());
+            _keystreams.setStore(store);
+        }
+        int failures = 0;
+        if (_batch) {
+            failures = processBatch(enigmaMachine);
+        } else {
+            processFile(enigmaMachine);
         }
-        String str = "\\*.+";
-        // STR REGEX SHOULD MATCH THIS LINE: `* B Beta III IV I AXLE (YF) (ZH)`.
-        while (_input.hasNextLine()) {
-            String currInputLine = _input.nextLine();
+        if (_tables != null && !_keystreams.built().isEmpty()) {
+            Map<String, Keystream> tables = new LinkedHashMap<>();
+            if (store != null) {
+                tables.putAll(store.tables());
+            }
+            tables.putAll(_keystreams.built());
+            TableStore.write(_tables, fingerprint(), tables);
+        }
+        if (failures > 0) {
+            throw error("%d of %d files failed", failures, _files.size() / 2);
+        }
+    }
 
-            boolean isMachineSet = false; // for debugging purposes
-            if (currInputLine.matches(str)) {
-                String settingInput = currInputLine; // DEBUG?
-                settingInput = settingInput.trim();
-                setUp(enigmaMachine, settingInput);
-                isMachineSet = true;
-                continue; // process next line
+    /** Serve sessions of my configuration on the socket _serve (see
+     *  Server) until the process ends.  With --reload, the configuration
+     *  file is watched, and each new version is read and compiled on the
+     *  watching thread and then replaces the old for new sessions, while
+     *  existing sessions go on with the version they started with.  A
+     *  version that cannot be read is reported and ignored. */
+    private void serve() {
+        AtomicReference<Server.Sessions> sessions =
+            new AtomicReference<>(sessions());
+        try {
+            if (_reload) {
+                reload(_configName, sessions);
             }
-            if (!currInputLine.matches(str)) {
-//                String inputWithoutAsterisk = currInputLine.replace(" ");
-                String encryptedString = enigmaMachine.convert(currInputLine);
-                printMessageLine(encryptedString); // write encryption to output
-                isMachineSet = false;
+            Server.serve(_serve, sessions);
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not serve on %s: %s", _serve,
+                        excp.getMessage());
+        }
+    }
+
+    /** Watch the configuration file named CONFIG, and each time it
+     *  changes, replace the value of SESSIONS by the source of sessions
+     *  of its new version (see serve), until the result is closed. */
+    static Closeable reload(String config,
+                            AtomicReference<Server.Sessions> sessions)
+        throws IOException {
+        return ConfigWatcher.watch(Paths.get(config), () -> {
+            try {
+                sessions.set(load(config));
+            } catch (EnigmaException excp) {
+                throw error("could not reload %s: %s", config,
+                            excp.getMessage());
             }
+            System.err.printf("Reloaded %s%n", config);
+        });
+    }
+
+    /** Return the source of sessions of my configuration, compiled into a
+     *  MachineSpec.  My configuration must have been read. */
+    private Server.Sessions sessions() {
+        MachineSpec spec =
+            new MachineSpec(_alphabet, _numRotors, _numPawls, _allRotors);
+        return settings -> session(spec, settings);
+    }
+
+    /** Return the source of sessions of the configuration in the file
+     *  named CONFIG, read afresh by a Main of its own, so that the Main
+     *  serving existing sessions is not disturbed. */
+    static Server.Sessions load(String config) {
+        Main main = new Main(List.of(config));
+        try {
+            main.readConfig();
+        } finally {
+            main._config.close();
+        }
+        return main.sessions();
+    }
+
+    /** Return a session of SPEC set up according to SETTINGS, which must
+     *  have the format specified in the assignment, as by setUp. */
+    private MachineSpec.Cursor session(MachineSpec spec, String settings) {
+        Resolved resolved;
+        synchronized (_resolved) {
+            resolved = _resolved.get(settings);
+        }
+        if (resolved == null) {
+            String[] parsedSettings = getParsedSettings(settings);
+            ArrayList<String> rotorsInput = getRotorsInput(parsedSettings);
+            String rotorSetting =
+                getRotorSetting(parsedSettings, rotorsInput);
+            resolved = new Resolved(rotorsInput.toArray(new String[0]),
+                                    rotorSetting,
+                                    _configuredMachine.parsePlugboard(
+                                        settings));
+            synchronized (_resolved) {
+                _resolved.put(settings, resolved);
+            }
+        }
+        return spec.session(resolved.rotors, resolved.setting,
+                            resolved.plugboard);
+    }
+
+    /** Apply M to my input, sending the results to my output, in the way
+     *  the options ask for. */
+    private void processFile(Machine M) {
+        if (_binary) {
+            processBinary(M);
+        } else if (_mapped && _inputName != null && isAscii(_alphabet)) {
+            processMapped(M);
+        } else {
+            processLines(M);
+        }
+    }
+
+    /** Apply copies of M to each of the files of the batch, _files,
+     *  concurrently on a pool with one thread per processor, reporting the
+     *  outcome for each file in turn, and return the number that failed.
+     *  A file that fails leaves what was written of its output before the
+     *  failure, as it would alone, and the others go on.  The Main (and
+     *  buffers) for each file are made only when a thread takes it up,
+     *  so that memory grows with the number of threads, not of files.
+     *  _files is replaced by the pairs of input and output names it
+     *  denotes. */
+    private int processBatch(Machine M) {
+        _files = batchFiles(_files);
+        for (Rotor r : _allRotors) {
+            r.precompute();
+        }
+        ExecutorService workers =
+            Executors.newFixedThreadPool(Runtime.getRuntime()
+                                         .availableProcessors(), task -> {
+                    Thread thread = new Thread(task, "enigma-batch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < _files.size(); i += 2) {
+            String input = _files.get(i), output = _files.get(i + 1);
+            results.add(workers.submit(() -> {
+                new Main(this, input, output).processFile(M.copy());
+            }));
+        }
+        int failures = 0;
+        try {
+            for (int i = 0; i < results.size(); i += 1) {
+                String name = _files.get(2 * i);
+                try {
+                    results.get(i).get();
+                    System.out.printf("%s: ok%n", name);
+                } catch (ExecutionException excp) {
+                    failures += 1;
+                    Throwable cause = excp.getCause();
+                    System.err.printf("Error: %s: %s%n", name,
+                                      cause instanceof EnigmaException
+                                      ? cause.getMessage()
+                                      : cause.toString());
+                }
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("interrupted");
+        } finally {
+            workers.shutdownNow();
+        }
+        return failures;
+    }
+
+    /** Return the input and output names, alternately, of the batch given
+     *  by NAMES: either the pairs themselves, or an input directory (all
+     *  of whose files are inputs) or a glob pattern matching input file
+     *  names in one directory, followed by an output directory, which is
+     *  created if need be and in which each output has the name of its
+     *  input. */
+    private static List<String> batchFiles(List<String> names) {
+        if (names.size() != 2 || !isBatchPattern(names.get(0))) {
+            if (names.isEmpty() || names.size() % 2 != 0) {
+                throw error("batch needs pairs of input and output files");
+            }
+            return names;
+        }
+        Path input = Paths.get(names.get(0)), dir = input;
+        String glob = "*";
+        if (!Files.isDirectory(input)) {
+            dir = input.getParent() == null ? Paths.get(".")
+                : input.getParent();
+            glob = input.getFileName().toString();
+        }
+        Path outDir = Paths.get(names.get(1));
+        List<String> result = new ArrayList<>();
+        try {
+            Files.createDirectories(outDir);
+            if (Files.isSameFile(dir, outDir)) {
+                throw error("output directory is the input directory");
+            }
+            PathMatcher matcher =
+                FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            List<Path> inputs = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file)
+                        && matcher.matches(file.getFileName())) {
+                        inputs.add(file);
+                    }
+                }
+            }
+            inputs.sort(null);
+            for (Path file : inputs) {
+                result.add(file.toString());
+                result.add(outDir.resolve(file.getFileName()).toString());
+            }
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not list batch %s", names.get(0));
+        }
+        if (result.isEmpty()) {
+            throw error("no input files match %s", names.get(0));
+        }
+        return result;
+    }
+
+    /** Return true iff NAME is a directory or a glob pattern. */
+    private static boolean isBatchPattern(String name) {
+        return Files.isDirectory(Paths.get(name))
+            || name.matches(".*[*?\\[{].*");
+    }
+
+    /** Apply M to the messages in _input, sending the results to
+     *  _output, which are opened first, and closed after, if they have
+     *  been left to processMapped or processBatch. */
+    private void processLines(Machine M) {
+        if (_inputName != null) {
+            _input = getReader(_inputName);
+            _output = getOutput(_outputName);
+        }
+        Blocks blocks = null;
+        try {
+            if (_pipeline) {
+                Pipeline.run(_input::readLine,
+                    (in, out) -> processMessages(M, in, out, null),
+                    this::printMessageLine);
+            } else if (_blocks) {
+                for (Rotor r : _allRotors) {
+                    r.precompute();
+                }
+                blocks = new Blocks(Runtime.getRuntime().availableProcessors(),
+                    (lines, out) -> convertBlock(M, lines, out),
+                    this::printMessageLine);
+                processMessages(M, _input::readLine, this::printMessageLine,
+                                blocks);
+                blocks.finish();
+            } else {
+                processMessages(M, _input::readLine, this::printMessageLine,
+                                null);
+            }
+        } catch (IOException excp) {
+            throw error("I/O error: %s", excp.getMessage());
+        } finally {
+            if (blocks != null) {
+                blocks.close();
+            }
+            try {
+                _output.flush();
+                if (_inputName != null) {
+                    _input.close();
+                    _output.close();
+                }
+            } catch (IOException excp) {
+                System.err.printf("Error: could not write output%n");
+            }
+        }
+    }
+
+    /** Apply M to the messages in the file _inputName, sending the results
+     *  to the file _outputName, as processLines does but working on the
+     *  bytes of the input, which is mapped a window at a time, so that no
+     *  characters or Strings are made for message lines.  My alphabet
+     *  must be ASCII. */
+    private void processMapped(Machine M) {
+        Path output = Paths.get(_outputName);
+        try (FileChannel in = FileChannel.open(Paths.get(_inputName));
+             FileChannel out = FileChannel.open(output,
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedLines lines = new MappedLines(M, out);
+            try {
+                for (long pos = 0; pos < in.size(); pos += MAP_WINDOW) {
+                    lines.scan(in.map(FileChannel.MapMode.READ_ONLY, pos,
+                                      Math.min(MAP_WINDOW, in.size() - pos)));
+                }
+                lines.finish();
+            } finally {
+                lines.flush();
+            }
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not process %s to %s", _inputName,
+                        _outputName);
+        }
+    }
+
+    /** Apply M to binary input: a settings line, ending in a newline,
+     *  followed by bytes that are converted exactly as they are, without
+     *  grouping, and written to the output.  Input and output are the
+     *  files _inputName and _outputName, or the standard input and output
+     *  where those are null. */
+    private void processBinary(Machine M) {
+        try (ReadableByteChannel in = _inputName == null
+                 ? Channels.newChannel(System.in)
+                 : FileChannel.open(Paths.get(_inputName));
+             WritableByteChannel out = _outputName == null
+                 ? Channels.newChannel(System.out)
+                 : FileChannel.open(Paths.get(_outputName),
+                       StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                       StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer src = ByteBuffer.allocateDirect(IO_BUFFER),
+                dst = ByteBuffer.allocateDirect(IO_BUFFER);
+            byte[] header = new byte[IO_BUFFER];
+            int length = 0;
+            src.flip();
+            for (byte b = 0; b != '\n'; ) {
+                if (!src.hasRemaining()) {
+                    src.clear();
+                    if (in.read(src) == -1) {
+                        throw EnigmaException.error(
+                                "Wrong format for input!");
+                    }
+                    src.flip();
+                } else if (length == header.length) {
+                    throw error("settings line too long");
+                } else {
+                    b = src.get();
+                    header[length] = b;
+                    length += 1;
+                }
+            }
+            String settings = new String(header, 0, length,
+                                         StandardCharsets.ISO_8859_1).trim();
+            if (!isSettings(settings)) {
+                throw EnigmaException.error("Wrong format for input!");
+            }
+            setUp(M, settings);
+            while (true) {
+                while (src.hasRemaining()) {
+                    M.convert(src, dst);
+                    dst.flip();
+                    while (dst.hasRemaining()) {
+                        out.write(dst);
+                    }
+                    dst.clear();
+                }
+                src.clear();
+                if (in.read(src) == -1) {
+                    break;
+                }
+                src.flip();
+            }
+        } catch (IOException | InvalidPathException excp) {
+            throw error("could not process binary input");
+        }
+    }
+
+    /** Return true iff every character of ALPHABET is ASCII. */
+    private static boolean isAscii(Alphabet alphabet) {
+        for (int i = 0; i < alphabet.size(); i += 1) {
+            if (alphabet.toChar(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The state of processMapped, which is fed the input a window at a
+     *  time and so must remember where it is within a line. */
+    private class MappedLines {
+
+        /** Lines processed by M, written to OUT. */
+        MappedLines(Machine M, FileChannel out) {
+            _machine = M;
+            _out = out;
+        }
+
+        /** Process the bytes of WINDOW, the next part of the input. */
+        void scan(ByteBuffer window) throws IOException {
+            for (int i = 0; i < window.limit(); i += 1) {
+                int b = window.get(i) & 0xFF;
+                if (_skipNewline) {
+                    _skipNewline = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    endLine();
+                    _skipNewline = b == '\r';
+                } else if (_lineStart && b == '*') {
+                    _lineStart = false;
+                    _settingsLength = 0;
+                    addSettings(b);
+                } else if (_settingsLength > 0) {
+                    addSettings(b);
+                } else {
+                    _lineStart = false;
+                    message(b);
+                }
+            }
+        }
+
+        /** Process the end of the input. */
+        void finish() throws IOException {
+            if (!_lineStart) {
+                endLine();
+            }
+            if (!_content) {
+                throw EnigmaException.error(
+                        "Wrong format for input!");
+            }
+        }
+
+        /** Write out all output so far. */
+        void flush() throws IOException {
+            _buffer.flip();
+            while (_buffer.hasRemaining()) {
+                _out.write(_buffer);
+            }
+            _buffer.clear();
+        }
+
+        /** Process the message byte B. */
+        private void message(int b) throws IOException {
+            if (!_content) {
+                if (Character.isWhitespace(b)) {
+                    _badBlank |= b != ' ' && _firstBad == -1;
+                    return;
+                }
+                startContent();
+            }
+            if (b == ' ') {
+                return;
+            }
+            int c = b > 0x7F ? -1 : _alphabet.indexOf((char) b);
+            if (c == -1) {
+                flush();
+                _out.truncate(_lineOffset);
+                throw EnigmaException.error("Char not in alphabet.");
+            }
+            if (_column != 0 && _column % 5 == 0) {
+                put((byte) ' ');
+            }
+            put((byte) _alphabet.toChar(_machine.convert(c)));
+            _column += 1;
+        }
+
+        /** Add B to the settings line being read. */
+        private void addSettings(int b) {
+            if (_settingsLength == _settings.length) {
+                _settings = Arrays.copyOf(_settings, 2 * _settings.length);
+            }
+            _settings[_settingsLength] = (byte) b;
+            _settingsLength += 1;
+        }
+
+        /** Note that the text of the input has started, writing out the
+         *  blank lines before it. */
+        private void startContent() throws IOException {
+            _content = true;
+            for (int i = 0; i < _blanks; i += 1) {
+                if (i == _firstBad) {
+                    throw EnigmaException.error("Char not in alphabet.");
+                }
+                putLineSeparator();
+            }
+            if (_badBlank) {
+                throw EnigmaException.error("Char not in alphabet.");
+            }
+            _lineOffset = _out.position() + _buffer.position();
+        }
+
+        /** Process the end of a line. */
+        private void endLine() throws IOException {
+            if (_settingsLength > 1) {
+                startContent();
+                setUp(_machine, new String(_settings, 0, _settingsLength,
+                                           StandardCharsets.ISO_8859_1)
+                      .trim());
+            } else if (_settingsLength == 1) {
+                _settingsLength = 0;
+                message('*');
+                putLineSeparator();
+            } else if (!_content) {
+                if (_badBlank) {
+                    _firstBad = _blanks;
+                    _badBlank = false;
+                }
+                _blanks += 1;
+            } else {
+                putLineSeparator();
+            }
+            _settingsLength = 0;
+            _lineStart = true;
+            _column = 0;
+            _lineOffset = _out.position() + _buffer.position();
+        }
+
+        /** Append B to the output. */
+        private void put(byte b) throws IOException {
+            if (!_buffer.hasRemaining()) {
+                flush();
+            }
+            _buffer.put(b);
+        }
+
+        /** Append a line separator to the output. */
+        private void putLineSeparator() throws IOException {
+            for (int i = 0; i < LINE_SEPARATOR.length(); i += 1) {
+                put((byte) LINE_SEPARATOR.charAt(i));
+            }
+        }
+
+        /** The machine converting messages. */
+        private final Machine _machine;
+
+        /** Destination of the output. */
+        private final FileChannel _out;
+
+        /** Output not yet written to _out. */
+        private final ByteBuffer _buffer = ByteBuffer.allocateDirect(IO_BUFFER);
+
+        /** Offset in the output of the start of the current line. */
+        private long _lineOffset;
+
+        /** The settings line being read, of length _settingsLength, or
+         *  empty if the current line is a message. */
+        private byte[] _settings = new byte[128];
+
+        /** See _settings. */
+        private int _settingsLength;
+
+        /** Number of characters of the current message line output. */
+        private int _column;
+
+        /** True iff nothing of the current line has been read. */
+        private boolean _lineStart = true;
+
+        /** True iff the last byte was a carriage return. */
+        private boolean _skipNewline;
+
+        /** True iff a line that is not blank has been read. */
+        private boolean _content;
+
+        /** Number of blank lines before the first that is not. */
+        private int _blanks;
+
+        /** Index among those blank lines of the first one containing
+         *  something other than spaces, or -1. */
+        private int _firstBad = -1;
+
+        /** True iff the current blank line contains something other
+         *  than spaces. */
+        private boolean _badBlank;
+    }
+
+    /** Apply M to the lines of INPUT, sending the converted messages to
+     *  OUTPUT.  Lines beginning with '*' are settings; the rest are
+     *  messages.  If BLOCKS is not null, each settings line and the
+     *  messages after it are instead handed to BLOCKS to convert. */
+    private void processMessages(Machine M, Pipeline.Lines input,
+                                 Pipeline.Messages output, Blocks blocks)
+        throws IOException {
+        int blanks = 0, firstBad = -1;
+        boolean content = false;
+        for (String line = input.readLine(); line != null;
+             line = input.readLine()) {
+            if (!content) {
+                if (line.isBlank()) {
+                    if (firstBad == -1 && !line.replace(" ", "").isEmpty()) {
+                        firstBad = blanks;
+                    }
+                    blanks += 1;
+                    continue;
+                }
+                content = true;
+                for (int i = 0; i < blanks; i += 1) {
+                    if (i == firstBad) {
+                        throw EnigmaException.error("Char not in alphabet.");
+                    }
+                    output.message(_message, 0, 0);
+                }
+            }
+            if (isSettings(line) && blocks != null) {
+                blocks.start(line);
+                continue;
+            } else if (isSettings(line)) {
+                setUp(M, line.trim());
+                continue;
+            } else if (blocks != null && blocks.active()) {
+                blocks.add(line);
+                continue;
+            }
+            if (_message.length < line.length()) {
+                _message = new char[2 * line.length()];
+            }
+            line.getChars(0, line.length(), _message, 0);
+            output.message(_message, 0, M.convert(_message, line.length()));
+        }
+        if (!content) {
+            throw EnigmaException.error(
+                    "Wrong format for input!");
+        }
+    }
+
+    /** Convert LINES, a settings line and the message lines after it, on
+     *  a new machine configured like M, sending the results to OUT. */
+    private void convertBlock(Machine M, List<String> lines,
+                              Pipeline.Messages out) throws IOException {
+        Machine machine = M.copy();
+        setUp(machine, lines.get(0).trim());
+        for (int i = 1; i < lines.size(); i += 1) {
+            char[] msg = lines.get(i).toCharArray();
+            out.message(msg, 0, machine.convert(msg, msg.length));
+        }
+    }
+
+    /** Return true iff LINE is a settings line: a '*' followed by at
+     *  least one other character. */
+    private static boolean isSettings(String line) {
+        return line.length() > 1 && line.charAt(0) == '*';
+    }
+
+    /** Return a digest of the configuration, identifying the machines a
+     *  TableStore may hold keystreams for. */
+    private byte[] fingerprint() {
+        StringBuilder config = new StringBuilder();
+        config.append(_alphabet.chars()).append(' ').append(_numRotors)
+            .append(' ').append(_numPawls);
+        for (Rotor r : _allRotors) {
+            config.append('\n').append(r.getClass().getSimpleName())
+                .append(' ').append(r.name()).append(' ')
+                .append(r.notches()).append(' ')
+                .append(r.permutation().cycles());
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                .digest(config.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException excp) {
+            throw new AssertionError(excp);
         }
     }
 
@@ -136,7 +903,10 @@ public final class Main {
      */
     private void configureMachine() {
         _alphabet = new Alphabet();
-        if (_config.hasNext("[^*()\\s]+")) { // changed regex
+        if (_config.hasNext(BYTE_ALPHABET)) {
+            _config.next();
+            _alphabet = Alphabet.ofBytes();
+        } else if (_config.hasNext("[^*()\\s]+")) { // changed regex
             String alphabetInput = _config.next();
             _alphabet = new Alphabet(alphabetInput.trim());
         } else {
@@ -176,21 +946,40 @@ public final class Main {
     }
 
     /** Return an Enigma machine configured from the contents of configuration
-     *  file _config. */
+     *  file _config, which may instead be a ConfigImage. */
     private Machine readConfig() {
-        try {
-            // FIXME
-            configureMachine();
-        } catch (NoSuchElementException excp) {
-            throw error("configuration file truncated");
+        Path name = Paths.get(_configName);
+        if (ConfigImage.isImage(name)) {
+            ConfigImage image = ConfigImage.read(name);
+            _alphabet = image.alphabet();
+            _numRotors = image.numRotors();
+            _numPawls = image.numPawls();
+            _allRotors = new ArrayList<>(image.rotors());
+            _configuredMachine = new Machine(_alphabet, _numRotors,
+                                             _numPawls, _allRotors);
+        } else {
+            try {
+                // FIXME
+                configureMachine();
+            } catch (NoSuchElementException excp) {
+                throw error("configuration file truncated");
+            }
+        }
+        _rotorNames = new HashSet<>();
+        for (Rotor r : _allRotors) {
+            _rotorNames.add(r.name());
         }
         return _configuredMachine;
     }
 
     private Rotor assignPermutations(Permutation currentPermutation) {
         if (_notches.charAt(0) == 'M') {
+            String notches = _notches.substring(1);
+            if (_alphabet.isBytes()) {
+                notches = Alphabet.fromHex(notches);
+            }
             return new MovingRotor(_currRotorName,
-                    currentPermutation, _notches.substring(1));
+                    currentPermutation, notches);
         }
         else if (_notches.charAt(0) == 'N') {
             return new FixedRotor(_currRotorName, currentPermutation);
@@ -210,7 +999,8 @@ public final class Main {
             throw EnigmaException.error("Wrong " +
                     "configuration for Rotor name |" + _config.next() + " |");
         }
-        if (_config.hasNext("([a-zA-Z]+[0-9]*)")) {
+        if (_config.hasNext("([a-zA-Z]+[0-9]*)")
+            || _alphabet.isBytes() && _config.hasNext("[MNR][0-9A-Fa-f]*")) {
             String s = _config.next();
 //            String pattern = "[MRN]([a-zA-Z\\d]+)";
 //            Matcher m = Pattern.compile(pattern).matcher(s);
@@ -259,13 +1049,8 @@ public final class Main {
         ArrayList<String> rotorsInput = new ArrayList<String>();
         // get rotors from input that are also in machine's rotors
         for (int i = 0; i < parsedSettings.length; i++) {
-            for (int j = 0; j < _allRotors.size();  j++) {
-                Rotor currentRotor = _allRotors.get(j);
-                String currentSetting = parsedSettings[i];
-                if (currentRotor.name().equals(currentSetting)) {
-                    rotorsInput.add(currentSetting);
-                    break;
-                }
+            if (_rotorNames.contains(parsedSettings[i])) {
+                rotorsInput.add(parsedSettings[i]);
             }
         }
         return rotorsInput;
@@ -291,6 +1076,10 @@ public final class Main {
             }
         }
 
+        if (_alphabet.isBytes()) {
+            rotorSetting = Alphabet.fromHex(rotorSetting);
+        }
+
         // set rotors by setting corresponding to "AXLE"
         // check if number of rotorsInput is equal to length of rotorSetting
         if (rotorsInput.size() - 1 != rotorSetting.length()) {  // DEBUG?
@@ -302,8 +1091,32 @@ public final class Main {
     }
 
     /** Set Machine M according to the specification given on SETTINGS,
-     *  which must have the format specified in the assignment. */
+     *  which must have the format specified in the assignment.  A line
+     *  seen recently is not parsed again: its resolution is taken from
+     *  _resolved. */
     private void setUp(Machine M, String settings) {
+        Resolved resolved;
+        synchronized (_resolved) {
+            resolved = _resolved.get(settings);
+        }
+        if (resolved != null) {
+            M.configure(resolved.rotors, resolved.setting,
+                        resolved.plugboard);
+        } else {
+            resolved = parseSetUp(M, settings);
+            synchronized (_resolved) {
+                _resolved.put(settings, resolved);
+            }
+        }
+
+        if (_keystream) {
+            M.useKeystream(_keystreams.get(settings, M));
+        }
+    }
+
+    /** Set Machine M according to SETTINGS, as setUp does, parsing it,
+     *  and return its resolution. */
+    private Resolved parseSetUp(Machine M, String settings) {
         // FIXME
         String[] parsedSettings = getParsedSettings(settings);
 
@@ -322,6 +1135,27 @@ public final class Main {
         // finally configure plugboard
         M.configurePlugboard(settings); // JOE
 
+        return new Resolved(rotorsInput.toArray(new String[0]),
+                            rotorSetting, M.plugboard());
+
+    }
+
+    /** A settings line resolved into what it does to a machine. */
+    private static final class Resolved {
+        /** The resolution of a line inserting ROTORS, setting them to
+         *  SETTING, and installing PLUGBOARD (null for none). */
+        Resolved(String[] rotors, String setting, Permutation plugboard) {
+            this.rotors = rotors;
+            this.setting = setting;
+            this.plugboard = plugboard;
+        }
+
+        /** See constructor. */
+        final String[] rotors;
+        /** See constructor. */
+        final String setting;
+        /** See constructor. */
+        final Permutation plugboard;
     }
 
     /** Return true iff verbose option specified. */
@@ -329,45 +1163,138 @@ public final class Main {
         return _verbose;
     }
 
-    /** Print MSG in groups of five (except that the last group may
-     *  have fewer letters). */
-    private void printMessageLine(String msg) {
-        // FIXME
-        // system.out or some other function?
-        StringBuilder result = new StringBuilder();
-        StringBuilder out = new StringBuilder();
-        for (int i = 0; i < msg.length(); i++) {
-            if (i != 0 && i % 5 == 0) { // reached 5 characters
-                result.append(out.toString());
-                result.append(" ");
-                out = new StringBuilder();
+    /** Print the LEN characters of MSG starting at OFF in groups of five
+     *  (except that the last group may have fewer letters). */
+    private void printMessageLine(char[] msg, int off, int len)
+        throws IOException {
+        if (_grouped.length < len + len / 5 + 1) {
+            _grouped = new char[2 * (len + len / 5 + 1)];
+        }
+        int g = 0;
+        for (int i = 0; i < len; i += 1) {
+            if (i != 0 && i % 5 == 0) {
+                _grouped[g] = ' ';
+                g += 1;
             }
-            out.append(msg.charAt(i));
+            _grouped[g] = msg[off + i];
+            g += 1;
         }
-        String remaining = out.toString();
-        if (remaining != "") {
-            result.append(remaining);
+        _output.write(_grouped, 0, g);
+        _output.write(LINE_SEPARATOR);
+        if (_verbose) {
+            _output.flush();
         }
-        _output.println(result.toString().trim());
     }
 
+    /** Alphabet token that denotes the alphabet of byte values. */
+    private static final String BYTE_ALPHABET = "00-FF";
+
     /** Alphabet used in this machine. */
     private Alphabet _alphabet;
 
+    /** True iff many files are to be processed (see processBatch). */
+    private static boolean _batch;
+
+    /** Socket on which to serve sessions, given by --serve, or null. */
+    private static Path _serve;
+
+    /** File to which --compile writes a ConfigImage, or null. */
+    private static Path _compile;
+
+    /** True iff the configuration of a server is to be reloaded when it
+     *  changes. */
+    private static boolean _reload;
+
+    /** Name of the configuration file. */
+    private String _configName;
+
+    /** Names of the inputs and outputs of a batch (see batchFiles). */
+    private List<String> _files;
+
     /** Source of input messages. */
-    private Scanner _input;
+    private BufferedReader _input;
 
     /** Source of machine configuration. */
     private Scanner _config;
 
     /** File for encoded/decoded messages. */
-    private PrintStream _output;
+    private Writer _output;
+
+    /** Buffer holding the message line being converted. */
+    private char[] _message = new char[IO_BUFFER];
+
+    /** Buffer in which converted message lines are grouped. */
+    private char[] _grouped = new char[IO_BUFFER];
+
+    /** Size of the input and output buffers, in characters. */
+    private static final int IO_BUFFER = 1 << 16;
+
+    /** Terminator of output lines. */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
 
     /** True if --verbose specified. */
     private static boolean _verbose;
 
+    /** True if --specialize specified: generate a class for each rotor
+     *  configuration instead of interpreting it. */
+    private static boolean _specialize;
+
+    /** True if --keystream specified: tabulate the whole keystream of
+     *  each settings line, and reuse it when the line recurs. */
+    private static boolean _keystream;
+
+    /** Length beyond which message lines are converted in parallel, as
+     *  given by --parallel, or 0 if they are always converted
+     *  sequentially. */
+    private static int _parallel;
+
+    /** True iff the input is a settings line followed by binary data. */
+    private static boolean _binary;
+
+    /** True iff the blocks of the input should be converted in parallel
+     *  (see Blocks). */
+    private static boolean _blocks;
+
+    /** True iff reading, conversion and writing should overlap (see
+     *  Pipeline). */
+    private static boolean _pipeline;
+
+    /** True iff input files should be mapped rather than read. */
+    private static boolean _mapped;
+
+    /** Names of the input and output files when they are to be mapped
+     *  rather than read and written, or null. */
+    private String _inputName, _outputName;
+
+    /** Number of bytes of input mapped at once by processMapped. */
+    private static final long MAP_WINDOW = 1L << 28;
+
+    /** File of prebuilt keystreams named by --tables, or null. */
+    private static Path _tables;
+
+    /** Keystreams of the settings lines seen so far, shared by the files
+     *  of a batch. */
+    private final KeystreamCache _keystreams;
+
+    /** Bound on the total size of _keystreams. */
+    private static final long KEYSTREAM_CACHE_BYTES = 256L << 20;
+
+    /** Bound on the number of entries of one keystream. */
+    private static final int KEYSTREAM_MAX_ENTRIES = 4 << 20;
+
     private ArrayList<Rotor> _allRotors = new ArrayList<>();
 
+    /** The names of _allRotors. */
+    private HashSet<String> _rotorNames;
+
+    /** Resolutions of the settings lines used most recently, by line,
+     *  least recently used first; shared by the Mains of a batch, and
+     *  so locked while used. */
+    private final Map<String, Resolved> _resolved;
+
+    /** Most entries of _resolved. */
+    private static final int RESOLVED_CACHE = 1024;
+
     private String _cycles;
 
     private StringBuilder _cyclesAggregator;
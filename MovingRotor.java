@@ -22,8 +22,7 @@ class MovingRotor extends Rotor {
 
     @Override
     void advance() {
-        // FIXME
-        this.set(this.setting()+1);
+        this.set(this.setting() + 1);
     }
 
     @Override
@@ -32,6 +31,11 @@ class MovingRotor extends Rotor {
         return _notches;
     }
 
+    @Override
+    Rotor copy() {
+        return copyState(new MovingRotor(name(), permutation(), _notches));
+    }
+
     @Override
     boolean rotates() {
         // FIXME
@@ -95,4 +95,44 @@ public class MovingRotorTest {
                 rotor.convertBackward(alpha.indexOf('S')));
     }
 
+    @Test
+    public void checkPrecomputedRotor() {
+        setRotor("I", NAVALA, "");
+        assertTrue(rotor.precompute());
+        checkRotor("Rotor I precomputed (A)", UPPER_STRING,
+                   NAVALA_MAP.get("I"));
+        rotor.advance();
+        checkRotor("Rotor I precomputed advanced", UPPER_STRING,
+                   NAVALB_MAP.get("I"));
+        rotor.set(25);
+        checkRotor("Rotor I precomputed set", UPPER_STRING,
+                   NAVALZ_MAP.get("I"));
+    }
+
+    @Test
+    public void checkRingSetting() {
+        setRotor("I", NAVALA, "");
+        rotor.setRing(1);
+        rotor.set(1);
+        checkRotor("Rotor I ring B at B", UPPER_STRING, NAVALA_MAP.get("I"));
+        rotor.set(0);
+        checkRotor("Rotor I ring B at A", UPPER_STRING, NAVALZ_MAP.get("I"));
+        rotor.precompute();
+        checkRotor("Rotor I ring B at A precomputed", UPPER_STRING,
+                   NAVALZ_MAP.get("I"));
+        rotor.setRing(0);
+        checkRotor("Rotor I ring A at A precomputed", UPPER_STRING,
+                   NAVALA_MAP.get("I"));
+    }
+
+    @Test
+    public void checkAdvanceWraps() {
+        setRotor("I", NAVALA, "Z");
+        rotor.set(25);
+        assertTrue(rotor.atNotch());
+        rotor.advance();
+        assertEquals(0, rotor.setting());
+        assertFalse(rotor.atNotch());
+    }
+
 }
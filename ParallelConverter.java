@@ -0,0 +1,93 @@
+package enigma;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Converts a long message in parallel.  The message is split into
+ *  chunks of at most a given length, and each chunk is converted by its
+ *  own copy of an Engine, skipped ahead to the chunk's offset, on the
+ *  common ForkJoinPool.  Since each chunk is converted in place, the
+ *  result is exactly that of converting the message sequentially.
+ *  @author Joseph Heupler
+ */
+final class ParallelConverter extends RecursiveAction {
+
+    /** Convert the LEN characters of BUF starting at OFF in place, as
+     *  ENGINE would starting from its current positions, in chunks of at
+     *  most CHUNK characters.  ALPHABET is that of ENGINE; iff
+     *  SPECIALIZED, each chunk uses a Converter generated by
+     *  EngineCompiler when possible.  The characters must all be in
+     *  ALPHABET.  ENGINE is not changed. */
+    static void convert(Engine engine, Alphabet alphabet,
+                        boolean specialized, char[] buf, int off, int len,
+                        int chunk) {
+        ForkJoinPool.commonPool().invoke(
+            new ParallelConverter(engine, alphabet, specialized, buf,
+                                  off, off, off + len, chunk));
+    }
+
+    /** A task converting BUF[LO .. HI-1], where BUF[START] is the first
+     *  character converted by ENGINE and the other parameters are as for
+     *  convert. */
+    private ParallelConverter(Engine engine, Alphabet alphabet,
+                              boolean specialized, char[] buf, int start,
+                              int lo, int hi, int chunk) {
+        _engine = engine;
+        _alphabet = alphabet;
+        _specialized = specialized;
+        _buf = buf;
+        _start = start;
+        _lo = lo;
+        _hi = hi;
+        _chunk = Math.max(1, chunk);
+    }
+
+    @Override
+    protected void compute() {
+        if (_hi - _lo > _chunk) {
+            int mid = _lo + (_hi - _lo) / 2;
+            invokeAll(new ParallelConverter(_engine, _alphabet, _specialized,
+                                            _buf, _start, _lo, mid, _chunk),
+                      new ParallelConverter(_engine, _alphabet, _specialized,
+                                            _buf, _start, mid, _hi, _chunk));
+            return;
+        }
+        Engine engine = new Engine(_engine);
+        engine.skip(_lo - _start);
+        Converter converter =
+            _specialized ? EngineCompiler.compile(engine, _alphabet) : null;
+        if (converter != null) {
+            converter.convert(_buf, _lo, _hi - _lo);
+            return;
+        }
+        for (int i = _lo; i < _hi; i += 1) {
+            int c = engine.convert(_alphabet.toInt(_buf[i]));
+            _buf[i] = _alphabet.toChar(c);
+        }
+    }
+
+    /** Version of this class, as RecursiveAction is Serializable; the
+     *  tasks are never serialized. */
+    private static final long serialVersionUID = 1L;
+
+    /** The engine whose positions are those before _buf[_start]. */
+    private final Engine _engine;
+
+    /** Alphabet of _engine. */
+    private final Alphabet _alphabet;
+
+    /** True iff chunks should use generated Converters. */
+    private final boolean _specialized;
+
+    /** The message being converted. */
+    private final char[] _buf;
+
+    /** Index in _buf of the first character of the message. */
+    private final int _start;
+
+    /** The range of _buf converted by this task. */
+    private final int _lo, _hi;
+
+    /** Largest range converted without splitting. */
+    private final int _chunk;
+}
@@ -1,8 +1,8 @@
 package enigma;
 
+import java.util.Arrays;
+
 import static enigma.EnigmaException.*;
-import java.util.regex.*;
-import java.util.ArrayList; // import the ArrayList class
 
 /** Represents a permutation of a range of integers starting at 0 corresponding
  *  to the characters of an alphabet.
@@ -14,18 +14,111 @@ class Permutation {
      *  form "(cccc) (cc) ..." where the c's are characters in ALPHABET, which
      *  is interpreted as a permutation in cycle notation.  Characters in the
      *  alphabet that are not included in any cycle map to themselves.
-     *  Whitespace is ignored. */
+     *  Whitespace is ignored.  In the alphabet of byte values (see
+     *  Alphabet.ofBytes()), each c is instead a pair of hex digits. */
     Permutation(String cycles, Alphabet alphabet) {
-        // FIXME
         _cycles = cycles;
         _alphabet = alphabet;
+        _forward = new int[alphabet.size()];
+        _inverse = new int[alphabet.size()];
+        for (int i = 0; i < _forward.length; i += 1) {
+            _forward[i] = i;
+            _inverse[i] = i;
+        }
+        _inCycle = new boolean[alphabet.size()];
+        _derangement = true;
+        parseCycles(cycles);
+        for (int i = 0; i < _forward.length; i += 1) {
+            if (_forward[i] == i) {
+                _derangement = false;
+                break;
+            }
+        }
+    }
+
+    /** A permutation of ALPHABET that maps K to TABLE[K], whose cycles
+     *  are CYCLES, for permutations whose table is already known (see
+     *  ConfigImage).  TABLE must be a permutation of the indices of
+     *  ALPHABET, and becomes mine. */
+    Permutation(String cycles, Alphabet alphabet, int[] table) {
+        _cycles = cycles;
+        _alphabet = alphabet;
+        if (table.length != alphabet.size()) {
+            throw error("permutation table has the wrong size");
+        }
+        _forward = table;
+        _inverse = new int[table.length];
+        _inCycle = new boolean[table.length];
+        Arrays.fill(_inverse, -1);
+        _derangement = true;
+        for (int i = 0; i < table.length; i += 1) {
+            if (table[i] < 0 || table[i] >= table.length
+                || _inverse[table[i]] != -1) {
+                throw error("table is not a permutation");
+            }
+            _inverse[table[i]] = i;
+            _inCycle[i] = table[i] != i;
+            _derangement &= table[i] != i;
+        }
+    }
+
+    /** Read the cycles in CYCLES one at a time and add each of them to
+     *  my tables. */
+    private void parseCycles(String cycles) {
+        StringBuilder cycle = null;
+        for (int i = 0; i < cycles.length(); i += 1) {
+            char ch = cycles.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                continue;
+            } else if (ch == '(') {
+                if (cycle != null) {
+                    throw error("nested '(' in cycles %s", cycles);
+                }
+                cycle = new StringBuilder();
+            } else if (ch == ')') {
+                if (cycle == null || cycle.length() == 0) {
+                    throw error("empty or unopened cycle in %s", cycles);
+                }
+                addCycle(cycle.toString());
+                cycle = null;
+            } else if (cycle == null) {
+                throw error("character '%c' is outside of a cycle", ch);
+            } else {
+                cycle.append(ch);
+            }
+        }
+        if (cycle != null) {
+            throw error("unclosed cycle in %s", cycles);
+        }
     }
 
     /** Add the cycle c0->c1->...->cm->c0 to the permutation, where CYCLE is
      *  c0c1...cm. */
     private void addCycle(String cycle) {
-        // FIXME
-        _cycles = _cycles + " (" + cycle + ')';
+        if (_alphabet.isBytes()) {
+            cycle = Alphabet.fromHex(cycle);
+        }
+        int first = _alphabet.toInt(cycle.charAt(0));
+        int prev = first;
+        markInCycle(first);
+        for (int i = 1; i < cycle.length(); i += 1) {
+            int next = _alphabet.toInt(cycle.charAt(i));
+            markInCycle(next);
+            _forward[prev] = next;
+            _inverse[next] = prev;
+            prev = next;
+        }
+        _forward[prev] = first;
+        _inverse[first] = prev;
+    }
+
+    /** Record that index K appears in a cycle, which it may do only once. */
+    private void markInCycle(int k) {
+        if (_inCycle[k]) {
+            throw error("'%c' appears in more than one place in cycles",
+                        _alphabet.toChar(k));
+        }
+        _inCycle[k] = true;
     }
 
     /** Return the value of P modulo the size of this permutation. */
@@ -39,161 +132,30 @@ class Permutation {
 
     /** Returns the size of the alphabet I permute. */
     int size() {
-        // FIXME
-        return _alphabet.size();
+        return _forward.length;
     }
 
-    /** Return the parsed cycles as an array from cycles. */
-    ArrayList<String> getCyclesArr() {
-        Pattern cyclesPattern = Pattern.compile("\\(+([a-zA-Z]+)\\)+"); // cycles to be separated by closed parenthesis
-        ArrayList<String> cycles_arr = new ArrayList<String>();
-
-        Matcher m = cyclesPattern.matcher(this._cycles);
-
-        while (m.find()) {
-            cycles_arr.add(m.group(1));
-        }
-        return cycles_arr;
-    }
-
-
-
     /** Return the result of applying this permutation to P modulo the
      *  alphabet size. */
     int permute(int p) {
-        // FIXME
-        p = wrap(p);
-        if (p >= size()) {
-            throw new EnigmaException("index is out of bounds in alphabet"); // check to see if specific exception needed
-        }
-
-        ArrayList<String> cycles_arr = getCyclesArr();
-
-        char target = alphabet()._chars.charAt(p);
-
-        char char_at_index = alphabet().toChar(p); // finds char in alphabet at given index
-
-        for (int i = 0; i < cycles_arr.size(); i++) {
-            String current = cycles_arr.get(i);
-
-            int targetInCycleIndex = current.indexOf(target);
-
-            if (targetInCycleIndex < 0) {
-                // if target does not exist in this cycle, proceed to next
-                continue;
-            }
-
-            int t = (targetInCycleIndex + 1) % (current.length()); // provides wraparound value for cycle
-
-            char shiftedChar = current.charAt(t);
-
-            return _alphabet.toInt(shiftedChar); // map the letter to the first cycle char
-        }
-        return p;
+        return _forward[wrap(p)];
     }
 
     /** Return the result of applying the inverse of this permutation
      *  to  C modulo the alphabet size. */
     int invert(int c) {
-        // FIXME
-        c = wrap(c);
-        if (c >= size()) {
-            throw new EnigmaException("index is out of bounds in alphabet"); // check to see if specific exception needed
-        }
-
-        ArrayList<String> cycles_arr = getCyclesArr();
-
-        char target = alphabet()._chars.charAt(c);
-
-        for (int i = 0; i < cycles_arr.size(); i++) {
-            String current = cycles_arr.get(i);
-
-            int targetInCycleIndex = current.indexOf(target);
-
-            if (targetInCycleIndex < 0) {
-                // if target does not exist in this cycle, proceed to next
-                continue;
-            }
-
-            int t;
-            if (targetInCycleIndex-1 < 0) {
-                t = current.length() - 1;
-            } else {
-                t = (targetInCycleIndex-1) % (current.length());
-            }
-
-            char shiftedChar = current.charAt(t);
-
-            return _alphabet.toInt(shiftedChar); // map the letter to the first cycle char
-        }
-        return c;
+        return _inverse[wrap(c)];
     }
 
     /** Return the result of applying this permutation to the index of P
      *  in ALPHABET, and converting the result to a character of ALPHABET. */
     char permute(char p) {
-        // FIXME
-        if (!alphabet().contains(p)) {
-            throw new EnigmaException("P was not found in the alphabet"); // check to see if specific exception needed
-        }
-
-        ArrayList<String> cycles_arr = getCyclesArr();
-
-        char target = p;
-
-        for (int i = 0; i < cycles_arr.size(); i++) {
-            String current = cycles_arr.get(i);
-
-            int targetInCycleIndex = current.indexOf(target);
-
-            if (targetInCycleIndex < 0) {
-                // if target does not exist in this cycle, proceed to next
-                continue;
-            }
-
-            int t = (targetInCycleIndex-1) % (current.length());
-
-            char shiftedChar = current.charAt(t);
-
-            return shiftedChar; // map the letter to the first cycle char
-        }
-        return p;
+        return _alphabet.toChar(_forward[_alphabet.toInt(p)]);
     }
 
     /** Return the result of applying the inverse of this permutation to C. */
     char invert(char c) {
-        // FIXME
-        if (!alphabet().contains(c)) {
-            throw new EnigmaException("C was not found in the alphabet"); // check to see if specific exception needed
-        }
-
-        ArrayList<String> cycles_arr = getCyclesArr();
-
-        char target = c;
-
-        for (int i = 0; i < cycles_arr.size(); i++) {
-            String current = cycles_arr.get(i);
-
-            int targetInCycleIndex = current.indexOf(target);
-
-            if (targetInCycleIndex < 0) {
-                // if target does not exist in this cycle, proceed to next
-                continue;
-            }
-
-            int t;
-            if (targetInCycleIndex == 0) {
-                t = current.length() - 1; // loop back to start
-            } else {
-                t = (targetInCycleIndex-1) % (current.length());
-            }
-
-            char shiftedChar = current.charAt(t);
-
-            return shiftedChar; // map the letter to the first cycle char
-        }
-
-        return c;
+        return _alphabet.toChar(_inverse[_alphabet.toInt(c)]);
     }
 
     /** Return the alphabet used to initialize this Permutation. */
@@ -204,25 +166,29 @@ class Permutation {
     /** Return true iff this permutation is a derangement (i.e., a
      *  permutation for which no value maps to itself). */
     boolean derangement() {
-        Pattern cycles_pattern = Pattern.compile("\\(+[a-zA-Z]+\\)+"); // cycles to be separated by closed parenthesis
-        ArrayList<String> cycles_arr = new ArrayList<String>();
-        Matcher m = cycles_pattern.matcher(this._cycles);
-        while (m.find()) {
-            cycles_arr.add(m.group());
-        }
-        // FIXME
-        int i = 0;
-        while (i < cycles_arr.size()) {
-            if (cycles_arr.get(i).length() == 1) {
-                return false;
-            }
-            i++;
-        }
-        return true;
+        return _derangement;
+    }
+
+    /** Return the cycles this permutation was built from. */
+    String cycles() {
+        return _cycles;
     }
 
     /** Alphabet of this permutation. */
     private Alphabet _alphabet;
+
+    /** The cycles this permutation was specified with. */
     private String _cycles;
-    // FIXME: ADDITIONAL FIELDS HERE, AS NEEDED
+
+    /** _forward[K] is the image of K under this permutation. */
+    private final int[] _forward;
+
+    /** _inverse[K] is the preimage of K under this permutation. */
+    private final int[] _inverse;
+
+    /** _inCycle[K] is true iff K has been named in one of my cycles. */
+    private final boolean[] _inCycle;
+
+    /** True iff no index maps to itself. */
+    private boolean _derangement;
 }
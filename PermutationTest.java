@@ -51,4 +51,42 @@ public class PermutationTest {
         checkPerm("identity", UPPER_STRING, UPPER_STRING);
     }
 
+    @Test
+    public void checkNavalARotors() {
+        for (String name : NAVALA.keySet()) {
+            perm = new Permutation(NAVALA.get(name), UPPER);
+            checkPerm(name, UPPER_STRING, NAVALA_MAP.get(name));
+        }
+    }
+
+    @Test
+    public void checkDerangement() {
+        perm = new Permutation(NAVALA.get("B"), UPPER);
+        assertTrue(perm.derangement());
+        perm = new Permutation(NAVALA.get("I"), UPPER);
+        assertFalse(perm.derangement());
+        perm = new Permutation("", UPPER);
+        assertFalse(perm.derangement());
+    }
+
+    @Test
+    public void checkHexCycles() {
+        perm = new Permutation("(00 FF 20) (0a28)", Alphabet.ofBytes());
+        assertEquals(0xFF, perm.permute(0x00));
+        assertEquals(0x20, perm.permute(0xFF));
+        assertEquals(0x00, perm.permute(0x20));
+        assertEquals(0x0A, perm.invert(0x28));
+        assertEquals(0x41, perm.permute(0x41));
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void checkRepeatedCharacter() {
+        perm = new Permutation("(AB) (BC)", UPPER);
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void checkUnclosedCycle() {
+        perm = new Permutation("(AB) (CD", UPPER);
+    }
+
 }
@@ -0,0 +1,239 @@
+package enigma;
+
+import java.io.IOException;
+
+/** Runs the processing of an input as three stages on their own threads,
+ *  so that reading, converting and writing overlap.  A reader thread
+ *  reads lines, the calling thread converts them, and a writer thread
+ *  writes the results.  The stages pass batches of lines and of messages
+ *  through SpscQueues, so the hand-offs are lock-free and infrequent.
+ *  The results are written in order, and when a stage fails, everything
+ *  converted before the failure is still written and the first failure
+ *  is thrown by run, as it would have been had the stages been run one
+ *  after another.
+ *  @author Joseph Heupler
+ */
+final class Pipeline {
+
+    /** A source of lines. */
+    interface Lines {
+        /** Return the next line, or null at the end of the input. */
+        String readLine() throws IOException;
+    }
+
+    /** A destination of converted messages. */
+    interface Messages {
+        /** Accept the LEN characters of MSG starting at OFF. */
+        void message(char[] msg, int off, int len) throws IOException;
+    }
+
+    /** The conversion of lines into messages. */
+    interface Stage {
+        /** Convert the lines of IN, sending the results to OUT. */
+        void run(Lines in, Messages out) throws IOException;
+    }
+
+    /** Run STAGE on the lines of INPUT, sending its messages to OUTPUT,
+     *  with INPUT and OUTPUT called from threads of their own. */
+    static void run(Lines input, Stage stage, Messages output)
+        throws IOException {
+        new Pipeline(input, output).run(stage);
+    }
+
+    /** A pipeline from INPUT to OUTPUT. */
+    private Pipeline(Lines input, Messages output) {
+        _input = input;
+        _output = output;
+    }
+
+    /** Run STAGE as the middle stage of this pipeline. */
+    private void run(Stage stage) throws IOException {
+        Thread reader = new Thread(this::read, "enigma-reader");
+        Thread writer = new Thread(this::write, "enigma-writer");
+        reader.setDaemon(true);
+        reader.start();
+        writer.start();
+        try {
+            stage.run(this::nextLine, this::addMessage);
+        } catch (IOException | RuntimeException | Error excp) {
+            fail(excp);
+        } finally {
+            _pending.last = true;
+            _messages.put(_pending);
+            _lines.stop();
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException excp) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable failure = _failure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /** Body of the reader thread. */
+    private void read() {
+        LineBatch batch = new LineBatch();
+        try {
+            for (String line = _input.readLine(); line != null;
+                 line = _input.readLine()) {
+                batch.lines[batch.size] = line;
+                batch.size += 1;
+                if (batch.size == BATCH_LINES) {
+                    if (!_lines.put(batch)) {
+                        return;
+                    }
+                    batch = new LineBatch();
+                }
+            }
+        } catch (IOException | RuntimeException | Error excp) {
+            fail(excp);
+        }
+        batch.last = true;
+        _lines.put(batch);
+    }
+
+    /** Return the next line for the middle stage, or null at the end of
+     *  the input. */
+    private String nextLine() {
+        while (_current == null || _next == _current.size) {
+            if (_current != null && _current.last) {
+                return null;
+            }
+            _current = _lines.take();
+            _next = 0;
+            if (_current == null) {
+                return null;
+            }
+        }
+        String line = _current.lines[_next];
+        _current.lines[_next] = null;
+        _next += 1;
+        return line;
+    }
+
+    /** Pass the LEN characters of MSG starting at OFF from the middle
+     *  stage to the writer. */
+    private void addMessage(char[] msg, int off, int len) throws IOException {
+        MessageBatch batch = _pending;
+        if (batch.length + len > batch.chars.length) {
+            char[] chars = new char[Math.max(2 * batch.chars.length,
+                                             batch.length + len)];
+            System.arraycopy(batch.chars, 0, chars, 0, batch.length);
+            batch.chars = chars;
+        }
+        System.arraycopy(msg, off, batch.chars, batch.length, len);
+        batch.length += len;
+        batch.ends[batch.size] = batch.length;
+        batch.size += 1;
+        if (batch.size == BATCH_LINES || batch.length >= BATCH_CHARS) {
+            if (!_messages.put(batch)) {
+                throw new IOException("output stopped");
+            }
+            _pending = new MessageBatch();
+        }
+    }
+
+    /** Body of the writer thread. */
+    private void write() {
+        try {
+            for (MessageBatch batch = _messages.take(); batch != null;
+                 batch = _messages.take()) {
+                for (int i = 0, start = 0; i < batch.size; i += 1) {
+                    _output.message(batch.chars, start,
+                                    batch.ends[i] - start);
+                    start = batch.ends[i];
+                }
+                if (batch.last) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException | Error excp) {
+            fail(excp);
+            _lines.stop();
+            _messages.stop();
+        }
+    }
+
+    /** Record EXCP as the failure of this pipeline if it is the first. */
+    private synchronized void fail(Throwable excp) {
+        if (_failure == null) {
+            _failure = excp;
+        }
+    }
+
+    /** A batch of lines.  The last batch of the input is marked. */
+    private static class LineBatch {
+        /** The lines, of which the first SIZE are valid. */
+        final String[] lines = new String[BATCH_LINES];
+        /** See LINES. */
+        int size;
+        /** True iff this is the last batch. */
+        boolean last;
+    }
+
+    /** A batch of messages, stored one after another in CHARS; the K-th
+     *  ends at ENDS[K].  The last batch of the output is marked. */
+    private static class MessageBatch {
+        /** The characters of the messages, of which the first LENGTH are
+         *  valid. */
+        char[] chars = new char[BATCH_CHARS];
+        /** See CHARS. */
+        int length;
+        /** The end of each message in CHARS, of which the first SIZE are
+         *  valid. */
+        final int[] ends = new int[BATCH_LINES];
+        /** See ENDS. */
+        int size;
+        /** True iff this is the last batch. */
+        boolean last;
+    }
+
+    /** Most lines in a batch. */
+    private static final int BATCH_LINES = 1024;
+
+    /** Number of message characters at which a batch is handed off. */
+    private static final int BATCH_CHARS = 1 << 16;
+
+    /** Most batches waiting between two stages. */
+    private static final int QUEUE_BATCHES = 16;
+
+    /** Source of lines for the reader. */
+    private final Lines _input;
+
+    /** Destination of messages for the writer. */
+    private final Messages _output;
+
+    /** Batches passed from the reader to the middle stage. */
+    private final SpscQueue<LineBatch> _lines =
+        new SpscQueue<>(QUEUE_BATCHES);
+
+    /** Batches passed from the middle stage to the writer. */
+    private final SpscQueue<MessageBatch> _messages =
+        new SpscQueue<>(QUEUE_BATCHES);
+
+    /** Batch being read by the middle stage, and the index of its next
+     *  line. */
+    private LineBatch _current;
+
+    /** See _current. */
+    private int _next;
+
+    /** Batch being filled by the middle stage. */
+    private MessageBatch _pending = new MessageBatch();
+
+    /** The first failure of a stage, or null. */
+    private volatile Throwable _failure;
+}
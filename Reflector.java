@@ -26,6 +26,11 @@ class Reflector extends FixedRotor {
         }
     }
 
+    @Override
+    Rotor copy() {
+        return copyState(new Reflector(name(), permutation()));
+    }
+
     @Override
     boolean reflecting() {
         return true;
@@ -46,30 +46,84 @@ class Rotor {
 
     /** Return my current setting. */
     int setting() {
-        // FIXME
         return _setting;
     }
 
     /** Set setting() to POSN.  */
     void set(int posn) {
-        // FIXME
-        _setting = posn;
+        _setting = permutation().wrap(posn);
     }
 
     /** Set setting() to character CPOSN. */
     void set(char cposn) {
-        // FIXME
         int new_int = alphabet().toInt(cposn);
         set(new_int);
     }
 
+    /** Return my ring setting (Ringstellung). */
+    int ring() {
+        return _ring;
+    }
+
+    /** Set my ring setting to RING, which rotates my wiring relative to
+     *  the letters of my alphabet without moving my notches. */
+    void setRing(int ring) {
+        _ring = permutation().wrap(ring);
+        if (_forwardTable != null) {
+            _forwardTable = null;
+            precompute();
+        }
+    }
+
+    /** Precompute, for every setting, my forward and inverse mappings
+     *  (with my ring setting folded in) into flat tables indexed by
+     *  SETTING * size() + P, unless they would exceed MAX_TABLE entries.
+     *  Returns true iff the tables are available afterwards. */
+    boolean precompute() {
+        int n = size();
+        if (_forwardTable != null) {
+            return true;
+        } else if ((long) n * n > MAX_TABLE) {
+            return false;
+        }
+        int[] forward = new int[n * n], backward = new int[n * n];
+        for (int s = 0; s < n; s += 1) {
+            int offset = s - _ring;
+            for (int p = 0; p < n; p += 1) {
+                forward[s * n + p] =
+                    permutation().wrap(permutation().permute(p + offset)
+                                       - offset);
+                backward[s * n + p] =
+                    permutation().wrap(permutation().invert(p + offset)
+                                       - offset);
+            }
+        }
+        _backwardTable = backward;
+        _forwardTable = forward;
+        return true;
+    }
+
+    /** Return my precomputed forward table (see precompute()), or null. */
+    int[] forwardTable() {
+        return _forwardTable;
+    }
+
+    /** Return my precomputed inverse table (see precompute()), or null. */
+    int[] backwardTable() {
+        return _backwardTable;
+    }
+
     /** Return the conversion of P (an integer in the range 0..size()-1)
      *  according to my permutation. */
     int convertForward(int p) {
-        // FIXME
-        int a = permutation().permute(p + setting());
-        int permuted = permutation().wrap(a); // performs permutation on P (x away from pos 0)
-        int result = permutation().wrap(permuted - setting()); // makes sure permutation wraps around (accounting for setting)
+        int result;
+        if (_forwardTable != null) {
+            result = _forwardTable[_setting * size() + p];
+        } else {
+            int offset = _setting - _ring;
+            result = permutation().wrap(permutation().permute(p + offset)
+                                        - offset);
+        }
         if (Main.verbose()) {
             System.err.printf("%c -> ", alphabet().toChar(result));
         }
@@ -79,9 +133,14 @@ class Rotor {
     /** Return the conversion of E (an integer in the range 0..size()-1)
      *  according to the inverse of my permutation. */
     int convertBackward(int e) {
-        // FIXME
-        int inverted = permutation().wrap(permutation().invert(e + setting())); // performs permutation on E (x away from pos 0)
-        int result = permutation().wrap(inverted - setting()); // makes sure inverse permutation wraps around (accounting for setting)
+        int result;
+        if (_backwardTable != null) {
+            result = _backwardTable[_setting * size() + e];
+        } else {
+            int offset = _setting - _ring;
+            result = permutation().wrap(permutation().invert(e + offset)
+                                        - offset);
+        }
         if (Main.verbose()) {
             System.err.printf("%c -> ", alphabet().toChar(result));
         }
@@ -109,6 +168,22 @@ class Rotor {
     void advance() {
     }
 
+    /** Return a new rotor like me, at my setting and ring setting and
+     *  sharing my permutation and tables, for use in another Machine. */
+    Rotor copy() {
+        return copyState(new Rotor(_name, _permutation));
+    }
+
+    /** Give COPY, a new rotor with my name and permutation, my setting,
+     *  ring setting and tables, and return it. */
+    final Rotor copyState(Rotor copy) {
+        copy._setting = _setting;
+        copy._ring = _ring;
+        copy._forwardTable = _forwardTable;
+        copy._backwardTable = _backwardTable;
+        return copy;
+    }
+
     @Override
     public String toString() {
         return "Rotor " + _name;
@@ -117,9 +192,19 @@ class Rotor {
     /** My name. */
     private final String _name;
 
+    /** Largest number of entries precompute() will allocate per table. */
+    static final int MAX_TABLE = 1 << 20;
+
     /** The permutation implemented by this rotor in its 0 position. */
     private Permutation _permutation;
+
+    /** My current setting, in the range 0..size()-1. */
     private int _setting;
 
-    // FIXME: ADDITIONAL FIELDS HERE, AS NEEDED
+    /** My ring setting, in the range 0..size()-1. */
+    private int _ring;
+
+    /** Forward and inverse mappings for every setting, or null if they
+     *  have not been precomputed. */
+    private int[] _forwardTable, _backwardTable;
 }
@@ -0,0 +1,185 @@
+package enigma;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** A resident server converting messages for clients connected to a Unix
+ *  domain socket, so that a configuration is read and compiled once and
+ *  then serves any number of short jobs.  Each connection is handled on
+ *  a thread of its own (a virtual thread where the platform has them)
+ *  and holds one session, a MachineSpec.Cursor, which its settings
+ *  frames replace and its message frames advance.  Sessions come from
+ *  whatever source is current when a settings frame arrives, so the
+ *  source can be swapped (to reload a configuration) while existing
+ *  sessions carry on with the spec they were made from.
+ *
+ *  The protocol is a sequence of frames, each a type byte, a four-byte
+ *  big-endian payload length of at most MAX_PAYLOAD, and the payload in
+ *  UTF-8.  A client sends SETTINGS frames, holding a settings line, and
+ *  MESSAGE frames; the server answers each with one frame, OK for
+ *  settings, MESSAGE with the conversion for a message (blanks
+ *  removed), or ERROR with a description, after which the connection
+ *  goes on; settings that are refused leave the session as it was.  A
+ *  malformed frame is answered with ERROR and the connection is
+ *  closed.  Each connection has two buffers of bounded size.
+ *  @author Joseph Heupler
+ */
+final class Server {
+
+    /** A source of sessions. */
+    interface Sessions {
+        /** Return a new session set up by the settings line SETTINGS,
+         *  throwing an EnigmaException if it is not valid. */
+        MachineSpec.Cursor session(String settings);
+    }
+
+    /** Not instantiable. */
+    private Server() {
+    }
+
+    /** Serve clients connecting to the socket at SOCKET, which is
+     *  replaced if it exists, with sessions from the current value of
+     *  SESSIONS, until the process ends. */
+    static void serve(Path socket, AtomicReference<Sessions> sessions)
+        throws IOException {
+        Files.deleteIfExists(socket);
+        ExecutorService connections = threads("enigma-connection");
+        try (ServerSocketChannel server =
+                 ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            socket.toFile().deleteOnExit();
+            while (true) {
+                SocketChannel client = server.accept();
+                connections.execute(() -> handle(client, sessions));
+            }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    /** Return an executor that runs each task on a new virtual thread,
+     *  or, where there are none, on a pool of daemon threads named
+     *  NAME. */
+    static ExecutorService threads(String name) {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException excp) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /** Answer the frames of CLIENT with sessions from SESSIONS until it
+     *  closes the connection or sends a malformed frame. */
+    private static void handle(SocketChannel client,
+                               AtomicReference<Sessions> sessions) {
+        ByteBuffer in = ByteBuffer.allocate(HEADER + MAX_PAYLOAD),
+            out = ByteBuffer.allocate(HEADER + MAX_REPLY);
+        MachineSpec.Cursor session = null;
+        try (client) {
+            while (true) {
+                in.clear().limit(HEADER);
+                if (!fill(client, in)) {
+                    return;
+                }
+                byte type = in.get(0);
+                int length = in.getInt(1);
+                if (length < 0 || length > MAX_PAYLOAD
+                    || type != SETTINGS && type != MESSAGE) {
+                    reply(client, out, ERROR, "malformed frame");
+                    return;
+                }
+                in.limit(HEADER + length);
+                if (!fill(client, in)) {
+                    return;
+                }
+                String payload = new String(in.array(), HEADER, length,
+                                            StandardCharsets.UTF_8);
+                try {
+                    if (type == SETTINGS && payload.isBlank()) {
+                        reply(client, out, ERROR, "empty settings");
+                    } else if (type == SETTINGS) {
+                        session = sessions.get().session(payload.trim());
+                        reply(client, out, OK, "");
+                    } else if (session == null) {
+                        reply(client, out, ERROR, "no settings");
+                    } else {
+                        reply(client, out, MESSAGE, session.convert(payload));
+                    }
+                } catch (EnigmaException excp) {
+                    reply(client, out, ERROR,
+                          String.valueOf(excp.getMessage()));
+                } catch (RuntimeException excp) {
+                    reply(client, out, ERROR, excp.toString());
+                }
+            }
+        } catch (IOException excp) {
+            return;
+        }
+    }
+
+    /** Read from CHANNEL until BUF is full, returning false if the input
+     *  ends first. */
+    static boolean fill(SocketChannel channel, ByteBuffer buf)
+        throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Write to CHANNEL a frame of type TYPE holding PAYLOAD, which must
+     *  fit, encoded, in the rest of BUF, which is used as a buffer. */
+    static void write(SocketChannel channel, ByteBuffer buf, byte type,
+                      String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        buf.clear();
+        buf.put(type).putInt(bytes.length).put(bytes);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /** Write a frame of type TYPE holding PAYLOAD to CLIENT, using BUF,
+     *  shortening PAYLOAD if it is too long, as only a long error
+     *  message can be. */
+    private static void reply(SocketChannel client, ByteBuffer buf,
+                              byte type, String payload)
+        throws IOException {
+        if (payload.length() > MAX_REPLY / 3) {
+            payload = payload.substring(0, MAX_REPLY / 3);
+        }
+        write(client, buf, type, payload);
+    }
+
+    /** Frame types. */
+    static final byte SETTINGS = 'S', MESSAGE = 'M', OK = 'K', ERROR = 'E';
+
+    /** Length of the header of a frame: its type and payload length. */
+    static final int HEADER = 5;
+
+    /** Largest payload of a frame sent to the server, in bytes. */
+    static final int MAX_PAYLOAD = 1 << 13;
+
+    /** Largest payload of a frame sent by the server, in bytes: a
+     *  conversion has at most as many characters as its message, and
+     *  each takes at most three bytes in UTF-8. */
+    static final int MAX_REPLY = 3 * MAX_PAYLOAD;
+}
@@ -0,0 +1,112 @@
+package enigma;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** A bounded queue for exactly one producer thread and one consumer
+ *  thread, without locks.  The items are kept in a ring whose size is a
+ *  power of two; the producer alone advances the tail and the consumer
+ *  alone advances the head, each publishing its index with a release
+ *  store that the other reads with an acquire load.  A thread that finds
+ *  the queue full (or empty) spins briefly and then parks for growing
+ *  intervals, checking a stop flag so that a failed stage cannot leave
+ *  the other blocked forever.
+ *  @author Joseph Heupler
+ */
+final class SpscQueue<T> {
+
+    /** A queue holding at most CAPACITY items, rounded up to a power of
+     *  two. */
+    @SuppressWarnings("unchecked")
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        _items = (T[]) new Object[size];
+        _mask = size - 1;
+    }
+
+    /** Add ITEM, which must not be null, if there is room, returning true
+     *  iff it was added. */
+    boolean offer(T item) {
+        long tail = _tail.get();
+        if (tail - _head.getAcquire() == _items.length) {
+            return false;
+        }
+        _items[(int) tail & _mask] = item;
+        _tail.setRelease(tail + 1);
+        return true;
+    }
+
+    /** Remove and return my first item, or null if I am empty. */
+    T poll() {
+        long head = _head.get();
+        if (head == _tail.getAcquire()) {
+            return null;
+        }
+        int slot = (int) head & _mask;
+        T item = _items[slot];
+        _items[slot] = null;
+        _head.setRelease(head + 1);
+        return item;
+    }
+
+    /** Add ITEM, waiting for room.  Returns false without adding it if
+     *  stop() is called first. */
+    boolean put(T item) {
+        for (int waits = 0; !offer(item); waits += 1) {
+            if (_stopped) {
+                return false;
+            }
+            backOff(waits);
+        }
+        return true;
+    }
+
+    /** Remove and return my first item, waiting for one.  Returns null
+     *  if stop() is called first. */
+    T take() {
+        for (int waits = 0;; waits += 1) {
+            T item = poll();
+            if (item != null || _stopped) {
+                return item;
+            }
+            backOff(waits);
+        }
+    }
+
+    /** Make threads waiting in put or take, now or later, give up. */
+    void stop() {
+        _stopped = true;
+    }
+
+    /** Wait a little, longer for larger WAITS. */
+    private static void backOff(int waits) {
+        if (waits < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK,
+                                           1L << Math.min(waits - SPINS,
+                                                          30)));
+        }
+    }
+
+    /** Number of waits spent spinning before parking. */
+    private static final int SPINS = 100;
+
+    /** Longest single park, in nanoseconds. */
+    private static final long MAX_PARK = 1_000_000;
+
+    /** The ring of items; item K is in slot K & _mask. */
+    private final T[] _items;
+
+    /** Size of _items minus one. */
+    private final int _mask;
+
+    /** Number of items ever removed. */
+    private final AtomicLong _head = new AtomicLong();
+
+    /** Number of items ever added. */
+    private final AtomicLong _tail = new AtomicLong();
+
+    /** True once stop() has been called. */
+    private volatile boolean _stopped;
+}
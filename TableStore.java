@@ -0,0 +1,253 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+import static enigma.EnigmaException.*;
+
+/** A read-only file of Keystream tables, keyed by settings line, that is
+ *  memory-mapped rather than read.  The tables therefore live outside the
+ *  Java heap, are shared by every thread that uses them, and are shared
+ *  through the page cache by every process that maps the same file.
+ *
+ *  A file begins with the magic number, a CRC-32C checksum of the rest
+ *  of the file, a fingerprint of the configuration the tables were
+ *  built for and an index of its tables; each table is then mapped
+ *  separately, so files may exceed 2 GB.  Writers never share a
+ *  temporary file, so processes may write a store concurrently: each
+ *  replaces it whole, and the last to finish wins.
+ *  @author Joseph Heupler
+ */
+final class TableStore {
+
+    /** A store of the tables in FILE, mapped when the file was opened. */
+    private TableStore(Map<String, Keystream> tables) {
+        _tables = tables;
+    }
+
+    /** Return the store in FILE if it exists and was built for the
+     *  configuration with fingerprint FINGERPRINT, or null otherwise (as
+     *  for a file in an older format).  Throws an EnigmaException if
+     *  FILE is a store but is corrupt. */
+    static TableStore open(Path file, byte[] fingerprint) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                            Math.min(channel.size(),
+                                                     HEADER_LIMIT));
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.remaining() < PREAMBLE || header.getLong() != MAGIC) {
+                return null;
+            }
+            if (header.getInt() != checksum(channel)) {
+                throw error("%s is corrupt (bad checksum)", file);
+            }
+            byte[] stored = new byte[header.getInt()];
+            header.get(stored);
+            if (!Arrays.equals(stored, fingerprint)) {
+                return null;
+            }
+            Map<String, Keystream> tables = new HashMap<>();
+            for (int k = header.getInt(); k > 0; k -= 1) {
+                byte[] key = new byte[header.getInt()];
+                header.get(key);
+                int size = header.getInt(), prefix = header.getInt(),
+                    rows = header.getInt();
+                long offset = header.getLong();
+                long length = (long) rows * size * Keystream.width(size);
+                MappedByteBuffer table =
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                                length);
+                tables.put(new String(key, StandardCharsets.UTF_8),
+                           new Keystream(size, prefix, rows, table));
+            }
+            return new TableStore(tables);
+        } catch (IOException excp) {
+            throw error("could not read %s", file);
+        } catch (RuntimeException excp) {
+            if (excp instanceof EnigmaException) {
+                throw excp;
+            }
+            throw error("%s is malformed", file);
+        }
+    }
+
+    /** Return the CRC-32C checksum of the contents of CHANNEL after its
+     *  first PREAMBLE bytes, mapped a window at a time. */
+    private static int checksum(FileChannel channel) throws IOException {
+        CRC32C crc = new CRC32C();
+        long size = channel.size();
+        for (long pos = PREAMBLE; pos < size; pos += CHECKSUM_WINDOW) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                                   Math.min(CHECKSUM_WINDOW, size - pos)));
+        }
+        return (int) crc.getValue();
+    }
+
+    /** Write TABLES to FILE as a store for the configuration with
+     *  fingerprint FINGERPRINT, replacing FILE atomically so that
+     *  processes that have the old file mapped are unaffected. */
+    static void write(Path file, byte[] fingerprint,
+                      Map<String, Keystream> tables) {
+        int headerSize = PREAMBLE + 4 + fingerprint.length + 4;
+        Map<String, byte[]> keys = new HashMap<>();
+        for (String settings : tables.keySet()) {
+            byte[] key = settings.getBytes(StandardCharsets.UTF_8);
+            keys.put(settings, key);
+            headerSize += 4 + key.length + 12 + 8;
+        }
+        if (headerSize > HEADER_LIMIT) {
+            throw error("too many tables for %s", file);
+        }
+        ByteBuffer header =
+            ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(0);
+        header.putInt(fingerprint.length).put(fingerprint);
+        header.putInt(tables.size());
+        long offset = headerSize;
+        for (Map.Entry<String, Keystream> entry : tables.entrySet()) {
+            Keystream table = entry.getValue();
+            byte[] key = keys.get(entry.getKey());
+            header.putInt(key.length).put(key);
+            header.putInt(table.size()).putInt(table.prefix())
+                .putInt(table.rows()).putLong(offset);
+            offset += table.footprint();
+        }
+        header.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(header.duplicate().position(PREAMBLE));
+        for (Keystream table : tables.values()) {
+            crc.update(table.table());
+        }
+        header.putInt(8, (int) crc.getValue());
+        replace(file, out -> {
+            writeFully(out, header);
+            for (Keystream table : tables.values()) {
+                writeFully(out, table.table());
+            }
+        });
+    }
+
+    /** The contents of a file being written. */
+    interface Contents {
+        /** Write me to OUT. */
+        void writeTo(FileChannel out) throws IOException;
+    }
+
+    /** Write CONTENTS to FILE, replacing it atomically, so that processes
+     *  that have the old file open are unaffected.  CONTENTS go first to
+     *  a temporary file of their own in the same directory, which takes
+     *  the permissions of FILE if it exists, and is removed if anything
+     *  fails; concurrent writers therefore never disturb one another. */
+    static void replace(Path file, Contents contents) {
+        Path temp;
+        try {
+            temp = Files.createTempFile(file.toAbsolutePath().getParent(),
+                                        file.getFileName() + ".", ".tmp");
+        } catch (IOException excp) {
+            throw error("could not write %s", file);
+        }
+        boolean replaced = false;
+        try {
+            try (FileChannel out =
+                     FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                contents.writeTo(out);
+            } catch (IOException excp) {
+                throw error("could not write %s", file);
+            }
+            try {
+                copyPermissions(file, temp);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+            } catch (IOException excp) {
+                throw error("could not replace %s", file);
+            }
+        } finally {
+            if (!replaced) {
+                discard(temp);
+            }
+        }
+    }
+
+    /** Give TEMP, which is to replace FILE, the permissions of FILE if
+     *  it exists, or otherwise those of an ordinary new file, where the
+     *  file system has permissions: a temporary file is made readable by
+     *  its owner alone. */
+    private static void copyPermissions(Path file, Path temp)
+        throws IOException {
+        if (!temp.getFileSystem().supportedFileAttributeViews()
+            .contains("posix")) {
+            return;
+        } else if (Files.exists(file)) {
+            Files.setPosixFilePermissions(temp,
+                                          Files.getPosixFilePermissions(file));
+        } else {
+            Files.setPosixFilePermissions(temp, NEW_PERMISSIONS);
+        }
+    }
+
+    /** Delete FILE if possible; a failure has been reported already. */
+    private static void discard(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException excp) {
+            return;
+        }
+    }
+
+    /** Write all of BUF to OUT. */
+    private static void writeFully(FileChannel out, ByteBuffer buf)
+        throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /** Return the table stored for SETTINGS, or null if there is none. */
+    Keystream get(String settings) {
+        return _tables.get(settings);
+    }
+
+    /** Return all my tables, by settings line. */
+    Map<String, Keystream> tables() {
+        return _tables;
+    }
+
+    /** First eight bytes of a store ("ENIGKS02"). */
+    private static final long MAGIC = 0x3230534B47494E45L;
+
+    /** Length of the magic number and checksum, which the checksum does
+     *  not cover. */
+    private static final int PREAMBLE = 8 + 4;
+
+    /** Permissions of a newly written file. */
+    private static final Set<PosixFilePermission> NEW_PERMISSIONS =
+        PosixFilePermissions.fromString("rw-r--r--");
+
+    /** Number of bytes of a store mapped at once to check its checksum. */
+    private static final long CHECKSUM_WINDOW = 1 << 30;
+
+    /** Largest header a store may have. */
+    private static final long HEADER_LIMIT = 1 << 30;
+
+    /** My tables, by settings line. */
+    private final Map<String, Keystream> _tables;
+}